@@ -0,0 +1,443 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2007-2011, Stephen Connolly, Alan Harder, Romain Seguy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package hudson.plugins.locksandlatches;
+
+import hudson.plugins.locksandlatches.LockWrapper.LockHandle;
+import hudson.plugins.locksandlatches.LockWrapper.LockWaiter;
+import hudson.plugins.locksandlatches.LockWrapper.NamedReentrantLock;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Replays a trace of builds through the {@link LockTable} acquisition engine
+ * under a virtual clock, to compare lock layouts and waiting policies offline.
+ * No Hudson is needed. Run it with
+ * <pre>
+ * mvn -Pbenchmarks test-compile exec:java -Dbenchmark.main=hudson.plugins.locksandlatches.LockSimulator -Dbenchmark.args="trace.txt"
+ * </pre>
+ * The trace is a text file of locks and builds, times being in seconds:
+ * <pre>
+ * # name capacity [pool]
+ * lock db1 1 db
+ * lock db2 1 db
+ * lock deploy 1
+ * # id arrival duration locks [priority]
+ * build nightly-1 0 3600 deploy,db*2
+ * build hotfix-7 120 300 deploy:shared 10
+ * </pre>
+ * where each lock is a lock or pool name, followed by {@code :shared} for
+ * shared access and {@code *k} to take {@code k} members of a pool.
+ * <p>
+ * Every build is simulated under each {@link Policy}, and the makespan, the
+ * utilisation of each lock and the percentiles of the time spent waiting are
+ * reported. Priorities are honoured, but do not age since the engine ages
+ * them by the wall clock.
+ *
+ * @since 0.7
+ */
+public class LockSimulator {
+    /**
+     * How waiting builds try again.
+     */
+    public enum Policy {
+        /**
+         * Every minute, as builds waiting in {@link LockWrapper} did before
+         * they were woken up by releases.
+         */
+        POLL_60S(60000),
+        /**
+         * As soon as a lock they wait for is released, as builds do now.
+         */
+        EVENT(0);
+
+        private final long interval;
+
+        Policy(long interval) {
+            this.interval = interval;
+        }
+    }
+
+    private final Map<String, Integer> capacities = new HashMap<String, Integer>();
+    private final Map<String, List<String>> pools = new HashMap<String, List<String>>();
+    private final List<Build> builds = new ArrayList<Build>();
+
+    /**
+     * Reads a trace in the format described above.
+     */
+    public static LockSimulator read(BufferedReader reader) throws IOException {
+        LockSimulator simulator = new LockSimulator();
+        String line;
+        int number = 0;
+        while ((line = reader.readLine()) != null) {
+            number++;
+            line = line.trim();
+            if (line.length() == 0 || line.startsWith("#")) {
+                continue;
+            }
+            String[] fields = line.split("\\s+");
+            try {
+                if (fields[0].equals("lock")) {
+                    simulator.addLock(fields[1], Integer.parseInt(fields[2]), fields.length > 3 ? fields[3] : null);
+                } else if (fields[0].equals("build")) {
+                    simulator.addBuild(fields[1], (long) (Double.parseDouble(fields[2]) * 1000),
+                            (long) (Double.parseDouble(fields[3]) * 1000), parseLocks(fields[4]),
+                            fields.length > 5 ? Integer.parseInt(fields[5]) : 0);
+                } else {
+                    throw new IllegalArgumentException("unknown record " + fields[0]);
+                }
+            } catch (RuntimeException e) {
+                throw new IOException("Line " + number + ": " + e.getMessage() + ": " + line);
+            }
+        }
+        return simulator;
+    }
+
+    private static List<LockWrapper.LockWaitConfig> parseLocks(String spec) {
+        List<LockWrapper.LockWaitConfig> locks = new ArrayList<LockWrapper.LockWaitConfig>();
+        for (String lock : spec.split(",")) {
+            int count = 1;
+            int star = lock.indexOf('*');
+            if (star >= 0) {
+                count = Integer.parseInt(lock.substring(star + 1));
+                lock = lock.substring(0, star);
+            }
+            boolean shared = lock.endsWith(":shared");
+            if (shared) {
+                lock = lock.substring(0, lock.length() - ":shared".length());
+            }
+            locks.add(new LockWrapper.LockWaitConfig(lock, shared, count));
+        }
+        return locks;
+    }
+
+    public void addLock(String name, int capacity, String pool) {
+        capacities.put(name, capacity);
+        if (pool != null) {
+            List<String> members = pools.get(pool);
+            if (members == null) {
+                members = new ArrayList<String>();
+                pools.put(pool, members);
+            }
+            members.add(name);
+        }
+    }
+
+    public void addBuild(String id, long arrival, long duration, List<LockWrapper.LockWaitConfig> locks, int priority) {
+        builds.add(new Build(id, arrival, duration, locks, priority));
+    }
+
+    /**
+     * Runs all the builds of the trace with a fresh lock table.
+     */
+    public Result run(Policy policy) {
+        final LockTable table = new LockTable();
+        Map<String, LockWrapper.LockConfig> configured = new HashMap<String, LockWrapper.LockConfig>();
+        for (Map.Entry<String, Integer> lock : capacities.entrySet()) {
+            configured.put(lock.getKey(), new LockWrapper.LockConfig(lock.getKey(), lock.getValue(), null));
+        }
+        table.setConfiguredLocks(configured);
+        final Simulation simulation = new Simulation(policy, table);
+        for (Build build : builds) {
+            simulation.schedule(new Event(build.arrival, build, Event.ARRIVE));
+        }
+        simulation.run();
+        return simulation.result;
+    }
+
+    /**
+     * One run of the trace.
+     */
+    private final class Simulation {
+        private final Policy policy;
+        private final LockTable table;
+        private final PriorityQueue<Event> events = new PriorityQueue<Event>();
+        private final Set<BuildRun> signalled = new LinkedHashSet<BuildRun>();
+        private final Result result;
+        private long now;
+        private long sequence;
+
+        Simulation(Policy policy, LockTable table) {
+            this.policy = policy;
+            this.table = table;
+            this.result = new Result(policy);
+        }
+
+        void schedule(Event event) {
+            event.sequence = sequence++;
+            events.add(event);
+        }
+
+        void run() {
+            Map<Build, BuildRun> runs = new HashMap<Build, BuildRun>();
+            Event event;
+            while ((event = events.poll()) != null) {
+                now = event.time;
+                BuildRun run = runs.get(event.build);
+                switch (event.type) {
+                    case Event.ARRIVE:
+                        run = new BuildRun(event.build);
+                        runs.put(event.build, run);
+                        attempt(run);
+                        break;
+                    case Event.RETRY:
+                        if (run.held == null) {
+                            attempt(run);
+                        }
+                        break;
+                    case Event.FINISH:
+                        finish(run);
+                        break;
+                }
+                // builds woken up by the releases try again at the same time, in order
+                for (BuildRun woken : signalled) {
+                    schedule(new Event(now, woken.build, Event.RETRY));
+                }
+                signalled.clear();
+            }
+        }
+
+        private void attempt(final BuildRun run) {
+            if (run.handles == null) {
+                run.handles = new LockPlan(run.build.locks, pools, Collections.<String, LockWrapper.LockConfig>emptyMap(), 0).reference(table);
+                if (policy == Policy.EVENT) {
+                    run.waiter = new LockWaiter(run, run.build.priority, new Runnable() {
+                        public void run() {
+                            signalled.add(run);
+                        }
+                    });
+                    for (LockHandle lock : run.handles) {
+                        for (NamedReentrantLock candidate : lock.getCandidates()) {
+                            candidate.addWaiter(run.waiter);
+                        }
+                    }
+                } else {
+                    run.waiter = new LockWaiter(run, run.build.priority);
+                }
+            }
+            List<LockHandle> held = new ArrayList<LockHandle>();
+            if (LockTable.tryLockAll(run.handles, run.waiter, run, held) != null) {
+                if (policy != Policy.EVENT) {
+                    schedule(new Event(now + policy.interval, run.build, Event.RETRY));
+                }
+                return;
+            }
+            stopWaiting(run);
+            run.held = held;
+            run.started = now;
+            result.waits.add(now - run.build.arrival);
+            schedule(new Event(now + run.build.duration, run.build, Event.FINISH));
+        }
+
+        private void stopWaiting(BuildRun run) {
+            for (LockHandle lock : run.handles) {
+                for (NamedReentrantLock candidate : lock.getCandidates()) {
+                    candidate.removeWaiter(run.waiter);
+                }
+            }
+        }
+
+        private void finish(BuildRun run) {
+            for (LockHandle lock : run.held) {
+                result.addHold(lock.getLock().getName(), now - run.started);
+            }
+            LockTable.unlockAll(run.held, run);
+            table.dereference(run.handles);
+            result.first = Math.min(result.first, run.build.arrival);
+            result.last = Math.max(result.last, now);
+        }
+    }
+
+    /**
+     * A build of the trace.
+     */
+    private static final class Build {
+        private final String id;
+        private final long arrival;
+        private final long duration;
+        private final List<LockWrapper.LockWaitConfig> locks;
+        private final int priority;
+
+        Build(String id, long arrival, long duration, List<LockWrapper.LockWaitConfig> locks, int priority) {
+            this.id = id;
+            this.arrival = arrival;
+            this.duration = duration;
+            this.locks = locks;
+            this.priority = priority;
+        }
+    }
+
+    /**
+     * A build being simulated, also the owner of its locks.
+     */
+    private static final class BuildRun {
+        private final Build build;
+        private List<LockHandle> handles;
+        private LockWaiter waiter;
+        private List<LockHandle> held;
+        private long started;
+
+        BuildRun(Build build) {
+            this.build = build;
+        }
+
+        @Override
+        public String toString() {
+            return build.id;
+        }
+    }
+
+    private static final class Event implements Comparable<Event> {
+        static final int ARRIVE = 0;
+        static final int RETRY = 1;
+        static final int FINISH = 2;
+
+        private final long time;
+        private final Build build;
+        private final int type;
+        private long sequence;
+
+        Event(long time, Build build, int type) {
+            this.time = time;
+            this.build = build;
+            this.type = type;
+        }
+
+        public int compareTo(Event o) {
+            // releases first, so that builds arriving at the same time can use the locks
+            if (time != o.time) {
+                return time < o.time ? -1 : 1;
+            }
+            if (type != o.type) {
+                return type == FINISH ? -1 : o.type == FINISH ? 1 : 0;
+            }
+            return sequence < o.sequence ? -1 : sequence > o.sequence ? 1 : 0;
+        }
+    }
+
+    /**
+     * What happened in one run of the trace.
+     */
+    public final class Result {
+        private final Policy policy;
+        private final List<Long> waits = new ArrayList<Long>();
+        private final Map<String, Long> holds = new TreeMap<String, Long>();
+        private long first = Long.MAX_VALUE;
+        private long last;
+
+        Result(Policy policy) {
+            this.policy = policy;
+        }
+
+        void addHold(String lock, long millis) {
+            Long total = holds.get(lock);
+            holds.put(lock, total == null ? millis : total + millis);
+        }
+
+        /**
+         * Returns the time from the first arrival to the last build finishing.
+         */
+        public long getMakespan() {
+            return waits.isEmpty() ? 0 : last - first;
+        }
+
+        /**
+         * Returns the wait below which the given fraction of the builds got their locks.
+         */
+        public long getWaitPercentile(double fraction) {
+            if (waits.isEmpty()) {
+                return 0;
+            }
+            List<Long> sorted = new ArrayList<Long>(waits);
+            Collections.sort(sorted);
+            int index = (int) Math.ceil(fraction * sorted.size()) - 1;
+            return sorted.get(Math.max(0, Math.min(sorted.size() - 1, index)));
+        }
+
+        /**
+         * Returns the fraction of the makespan the lock was held, over all its capacity.
+         */
+        public double getUtilisation(String lock) {
+            Long held = holds.get(lock);
+            Integer capacity = capacities.get(lock);
+            long makespan = getMakespan();
+            if (held == null || makespan == 0) {
+                return 0;
+            }
+            return held / (double) (makespan * (capacity == null ? 1 : capacity));
+        }
+
+        public void print(PrintStream out) {
+            out.println(policy + ": " + waits.size() + "/" + builds.size() + " builds, makespan " + seconds(getMakespan()));
+            out.println("  wait p50 " + seconds(getWaitPercentile(0.5)) + ", p90 " + seconds(getWaitPercentile(0.9))
+                    + ", p99 " + seconds(getWaitPercentile(0.99)) + ", max " + seconds(getWaitPercentile(1)));
+            for (String lock : holds.keySet()) {
+                out.println(String.format("  %-30s %5.1f%% utilised", lock, 100 * getUtilisation(lock)));
+            }
+        }
+
+        private String seconds(long millis) {
+            return String.format("%.1fs", millis / 1000.0);
+        }
+    }
+
+    /**
+     * Simulates the trace given as argument under the given policies, or all of them.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.err.println("Usage: LockSimulator TRACE [POLICY...]");
+            System.exit(2);
+        }
+        BufferedReader reader = new BufferedReader(new FileReader(args[0]));
+        LockSimulator simulator;
+        try {
+            simulator = read(reader);
+        } finally {
+            reader.close();
+        }
+        List<Policy> policies = new ArrayList<Policy>();
+        for (int i = 1; i < args.length; i++) {
+            policies.add(Policy.valueOf(args[i]));
+        }
+        if (policies.isEmpty()) {
+            Collections.addAll(policies, Policy.values());
+        }
+        for (Policy policy : policies) {
+            simulator.run(policy).print(System.out);
+        }
+    }
+}
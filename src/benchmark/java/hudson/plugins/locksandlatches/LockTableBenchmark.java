@@ -0,0 +1,175 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2007-2011, Stephen Connolly, Alan Harder, Romain Seguy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package hudson.plugins.locksandlatches;
+
+import hudson.plugins.locksandlatches.LockWrapper.LockHandle;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.util.List;
+import java.util.Random;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Drives the {@link LockTable} acquisition engine the way
+ * {@link LockWrapper#setUp} does, without a running Hudson: look the locks up,
+ * get all of them in sorted order, release them.
+ *
+ * @since 0.7
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Threads(16)
+public class LockTableBenchmark {
+    /**
+     * How the lock sets of the builds relate to each other:
+     * <dl>
+     * <dt>disjoint</dt><dd>every thread has its own locks</dd>
+     * <dt>overlapping</dt><dd>every thread picks random locks out of a shared pool</dd>
+     * <dt>contended</dt><dd>every thread wants the same locks</dd>
+     * </dl>
+     */
+    @Param({"disjoint", "overlapping", "contended"})
+    public String pattern;
+
+    /**
+     * The number of locks each build asks for.
+     */
+    @Param({"1", "4", "16"})
+    public int locksPerBuild;
+
+    /**
+     * The size of the shared pool in the {@code overlapping} pattern.
+     */
+    @Param({"64"})
+    public int poolSize;
+
+    /**
+     * Whether half the builds only need shared access.
+     */
+    @Param({"false", "true"})
+    public boolean mixedModes;
+
+    LockTable table;
+
+    private final AtomicInteger threads = new AtomicInteger();
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        table = new LockTable();
+    }
+
+    /**
+     * The locks of one simulated build.
+     */
+    @State(Scope.Thread)
+    public static class Build {
+        SortedMap<String, Boolean> modes;
+        Random random;
+
+        @Setup(Level.Trial)
+        public void setUp(LockTableBenchmark benchmark) {
+            int thread = benchmark.threads.getAndIncrement();
+            random = new Random(thread);
+            boolean shared = benchmark.mixedModes && thread % 2 == 1;
+            modes = new TreeMap<String, Boolean>();
+            while (modes.size() < benchmark.locksPerBuild) {
+                String name;
+                if ("disjoint".equals(benchmark.pattern)) {
+                    name = "lock-" + thread + "-" + modes.size();
+                } else if ("overlapping".equals(benchmark.pattern)) {
+                    name = "lock-" + random.nextInt(Math.max(benchmark.poolSize, benchmark.locksPerBuild));
+                } else {
+                    name = "lock-" + modes.size();
+                }
+                modes.put(name, shared);
+            }
+        }
+    }
+
+    /**
+     * A full build cycle: reference, acquire, release, dereference. The
+     * thread's {@link Build} state is the owner of the locks.
+     */
+    @Benchmark
+    public void acquireAndRelease(Build build) throws InterruptedException {
+        List<LockHandle> locks = table.reference(build.modes);
+        try {
+            LockTable.unlockAll(LockTable.lockAll(locks, build, -1, null), build);
+        } finally {
+            table.dereference(locks);
+        }
+    }
+
+    /**
+     * A single all-or-nothing attempt, as made by a build that fails fast.
+     */
+    @Benchmark
+    public boolean tryOnce(Build build) throws InterruptedException {
+        List<LockHandle> locks = table.reference(build.modes);
+        try {
+            List<LockHandle> held = LockTable.lockAll(locks, build, 0, null);
+            if (held != null) {
+                LockTable.unlockAll(held, build);
+                return true;
+            }
+            return false;
+        } finally {
+            table.dereference(locks);
+        }
+    }
+
+    /**
+     * The lock table lookup alone.
+     */
+    @Benchmark
+    public List<LockHandle> lookup(Build build) {
+        List<LockHandle> locks = table.reference(build.modes);
+        table.dereference(locks);
+        return locks;
+    }
+
+    @TearDown(Level.Trial)
+    public void checkNothingLeaked() {
+        for (LockWrapper.NamedReentrantLock lock : table.getLocks()) {
+            if (lock.getHoldCount() != 0 || lock.getSharedCount() != 0) {
+                throw new IllegalStateException(lock.getName() + " is still held");
+            }
+        }
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2007-2011, Stephen Connolly, Alan Harder, Romain Seguy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package hudson.plugins.locksandlatches;
+
+import hudson.plugins.locksandlatches.LatchWrapper.LatchConfig;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+/**
+ * The builds waiting at each latch and barrier used by {@link LatchWrapper},
+ * and the latches that are open.
+ * <p>
+ * Everything is guarded by the monitor of the table, which the builds also
+ * wait on for a latch to open or a barrier to be reached.
+ *
+ * @since 0.7
+ */
+public final class LatchTable {
+    /**
+     * The builds that have reached each latch or barrier. A latch keeps them
+     * until they have all finished, a barrier until it lets them through.
+     */
+    private final Map<LatchConfig, Set<Object>> waiting = new HashMap<LatchConfig, Set<Object>>();
+
+    private final Set<LatchConfig> open = new HashSet<LatchConfig>();
+
+    /**
+     * How many times each barrier has let a group of builds through.
+     */
+    private final Map<LatchConfig, Integer> barrierGenerations = new HashMap<LatchConfig, Integer>();
+
+    /**
+     * Records that the build has reached the latches, opening any latch
+     * that now has {@link LatchConfig#getCount()} builds waiting on it.
+     * A barrier reached by that many builds lets them all through and
+     * starts waiting for the next group.
+     *
+     * @return the generation of each barrier the build is waiting for,
+     *         to be passed to {@link #awaitBarrier(LatchConfig, int, Object, long)}.
+     */
+    public synchronized Map<LatchConfig, Integer> register(Object build, Set<LatchConfig> latches) {
+        Map<LatchConfig, Integer> generations = new HashMap<LatchConfig, Integer>();
+        for (LatchConfig latch : latches) {
+            Set<Object> builds = waiting.get(latch);
+            if (builds == null) {
+                builds = new HashSet<Object>();
+                waiting.put(latch, builds);
+            }
+            builds.add(build);
+            if (latch.isBarrier()) {
+                int generation = getGeneration(latch);
+                generations.put(latch, generation);
+                if (builds.size() >= latch.getCount()) {
+                    LOGGER.fine("Barrier " + latch.getName() + " reached by " + builds.size() + " builds");
+                    waiting.remove(latch);
+                    barrierGenerations.put(latch, generation + 1);
+                    notifyAll();
+                }
+            } else if (builds.size() >= latch.getCount() && open.add(latch)) {
+                LOGGER.fine("Latch " + latch.getName() + " opened");
+                notifyAll();
+            }
+        }
+        return generations;
+    }
+
+    /**
+     * Returns how many times the barrier has let a group of builds through.
+     */
+    public synchronized int getGeneration(LatchConfig barrier) {
+        Integer generation = barrierGenerations.get(barrier);
+        return generation == null ? 0 : generation;
+    }
+
+    public synchronized boolean isOpen(LatchConfig latch) {
+        return open.contains(latch);
+    }
+
+    /**
+     * Forgets about a build that has gone past the latches. Once every
+     * build that went through a latch has finished, the latch is closed
+     * again for the next group.
+     */
+    public synchronized void unregister(Object build, Set<LatchConfig> latches) {
+        for (LatchConfig latch : latches) {
+            Set<Object> builds = waiting.get(latch);
+            if (builds != null && builds.remove(build) && builds.isEmpty()) {
+                waiting.remove(latch);
+                open.remove(latch);
+            }
+        }
+    }
+
+    /**
+     * Blocks until the latch opens or the timeout expires.
+     *
+     * @param timeout the maximum number of milliseconds to wait, 0 to wait forever.
+     * @return {@code false} if the timeout expired first.
+     */
+    public synchronized boolean await(LatchConfig latch, long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (!open.contains(latch)) {
+            if (timeout <= 0) {
+                wait();
+            } else {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                wait(remaining);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Blocks until the given generation of the barrier has been reached by
+     * enough builds, or the timeout expires. A build that times out no
+     * longer counts towards the barrier.
+     *
+     * @param timeout the maximum number of milliseconds to wait, 0 to wait forever.
+     * @return {@code false} if the timeout expired first.
+     */
+    public synchronized boolean awaitBarrier(LatchConfig barrier, int generation, Object build, long timeout)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (getGeneration(barrier) == generation) {
+            if (timeout <= 0) {
+                wait();
+            } else {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    unregister(build, Collections.singleton(barrier));
+                    return false;
+                }
+                wait(remaining);
+            }
+        }
+        return true;
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(LatchTable.class.getName());
+}
@@ -37,10 +37,11 @@ import org.kohsuke.stapler.StaplerRequest;
 import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 /**
@@ -50,9 +51,62 @@ import java.util.logging.Logger;
  * @since 04-Dec-2007 12:04:47
  */
 public class LatchWrapper extends BuildWrapper {
+    private List<LatchWaitConfig> latches;
+
+    public LatchWrapper(List<LatchWaitConfig> latches) {
+        this.latches = latches;
+    }
+
+    public List<LatchWaitConfig> getLatches() {
+        return latches;
+    }
+
+    public void setLatches(List<LatchWaitConfig> latches) {
+        this.latches = latches;
+    }
+
     @Override
     public Environment setUp(AbstractBuild abstractBuild, Launcher launcher, BuildListener buildListener) throws IOException, InterruptedException {
+        final Set<LatchConfig> latchConfigs = new LinkedHashSet<LatchConfig>();
+        for (LatchWaitConfig latch : latches) {
+            if (latch.getLatch() == null) {
+                buildListener.getLogger().println("[locks-and-latches] Latch " + latch.getName() + " no longer exists, ignoring it");
+            } else {
+                latchConfigs.add(latch.getLatch());
+            }
+        }
+
+        Map<LatchConfig, Integer> generations = DESCRIPTOR.register(abstractBuild, latchConfigs);
+        try {
+            for (LatchConfig latch : latchConfigs) {
+                if (latch.isBarrier()) {
+                    buildListener.getLogger().println("[locks-and-latches] Waiting for " + latch.getCount()
+                            + " builds to reach barrier " + latch.getName() + "...");
+                    if (DESCRIPTOR.awaitBarrier(latch, generations.get(latch), abstractBuild)) {
+                        buildListener.getLogger().println("[locks-and-latches] Barrier " + latch.getName() + " reached, carrying on together");
+                    } else {
+                        buildListener.getLogger().println("[locks-and-latches] Timed out waiting at barrier " + latch.getName() + ", carrying on");
+                    }
+                    continue;
+                }
+                buildListener.getLogger().println("[locks-and-latches] Waiting for latch " + latch.getName() + " to open...");
+                if (DESCRIPTOR.await(latch)) {
+                    buildListener.getLogger().println("[locks-and-latches] Latch " + latch.getName() + " is open");
+                } else {
+                    buildListener.getLogger().println("[locks-and-latches] Timed out waiting for latch " + latch.getName() + ", carrying on");
+                }
+            }
+        } catch (InterruptedException e) {
+            DESCRIPTOR.unregister(abstractBuild, latchConfigs);
+            throw e;
+        }
+
         return new Environment() {
+            @Override
+            public boolean tearDown(AbstractBuild abstractBuild, BuildListener buildListener) throws IOException, InterruptedException {
+                DESCRIPTOR.unregister(abstractBuild, latchConfigs);
+                return super.tearDown(abstractBuild, buildListener);
+            }
         };
     }
 
@@ -62,13 +116,44 @@ public class LatchWrapper extends BuildWrapper {
 
     public static final class DescriptorImpl extends Descriptor<BuildWrapper> {
         private List<LatchConfig> latches;
-        private static transient ConcurrentMap<LatchConfig, Set<AbstractBuild>> waitingJobs =
-                new ConcurrentHashMap<LatchConfig,Set<AbstractBuild>>();
-        private static transient ConcurrentMap<LatchConfig, Boolean> releasedLatches =
-                new ConcurrentHashMap<LatchConfig,Boolean>();
+        private transient LatchTable latchTable = new LatchTable();
 
-        public void register(AbstractBuild build, Set<LatchConfig> latches) {
+        public LatchTable getLatchTable() {
+            return latchTable;
+        }
 
+        /**
+         * @see LatchTable#register(Object, Set)
+         */
+        public Map<LatchConfig, Integer> register(AbstractBuild build, Set<LatchConfig> latches) {
+            return latchTable.register(build, latches);
+        }
+
+        /**
+         * @see LatchTable#unregister(Object, Set)
+         */
+        public void unregister(AbstractBuild build, Set<LatchConfig> latches) {
+            latchTable.unregister(build, latches);
+        }
+
+        /**
+         * Blocks until the latch opens or its timeout expires.
+         *
+         * @return {@code false} if the timeout expired first.
+         */
+        public boolean await(LatchConfig latch) throws InterruptedException {
+            return latchTable.await(latch, latch.getTimeoutMillis());
+        }
+
+        /**
+         * Blocks until the given generation of the barrier has been reached by
+         * enough builds, or its timeout expires. A build that times out no
+         * longer counts towards the barrier.
+         *
+         * @return {@code false} if the timeout expired first.
+         */
+        public boolean awaitBarrier(LatchConfig barrier, int generation, AbstractBuild build) throws InterruptedException {
+            return latchTable.awaitBarrier(barrier, generation, build, barrier.getTimeoutMillis());
         }
 
         DescriptorImpl() {
@@ -83,7 +168,7 @@ public class LatchWrapper extends BuildWrapper {
         @Override
         public BuildWrapper newInstance(StaplerRequest req, JSONObject formData) throws FormException {
             List<LatchWaitConfig> latches = req.bindParametersToList(LatchWaitConfig.class, "latches.latches.");
-            return new LatchWrapper(); //TODO
+            return new LatchWrapper(latches);
         }
 
         @Override
@@ -118,6 +203,7 @@ public class LatchWrapper extends BuildWrapper {
         }
 
         public String[] getLatchNames() {
+            getLatches();
             String[] result = new String[latches.size()];
             for (int i = 0; i < result.length; i++) {
                 result[i] = latches.get(i).getName();
@@ -137,7 +223,7 @@ public class LatchWrapper extends BuildWrapper {
         return DESCRIPTOR;
     }
 
-    // @Extension
+    @Extension
     public static final DescriptorImpl DESCRIPTOR = new DescriptorImpl();
 
     public static final class LatchConfig implements Serializable {
@@ -145,15 +231,26 @@ public class LatchWrapper extends BuildWrapper {
         private int count;
         private long timeout;
 
+        /**
+         * Whether this is a barrier, letting builds through by groups of
+         * {@link #count}, rather than a latch that stays open once opened.
+         */
+        private boolean barrier;
+
         public LatchConfig() {
             this.count = 1;
         }
 
-        @DataBoundConstructor
         public LatchConfig(String name, int count, long timeout) {
+            this(name, count, timeout, false);
+        }
+
+        @DataBoundConstructor
+        public LatchConfig(String name, int count, long timeout, boolean barrier) {
             this.name = name;
             this.count = count;
             this.timeout = timeout;
+            this.barrier = barrier;
         }
 
         public String getName() {
@@ -180,6 +277,22 @@ public class LatchWrapper extends BuildWrapper {
             this.timeout = timeout;
         }
 
+        /**
+         * Returns the {@link #getTimeout() timeout}, given in minutes, in
+         * milliseconds, 0 for none.
+         */
+        public long getTimeoutMillis() {
+            return timeout > 0 ? TimeUnit.MINUTES.toMillis(timeout) : 0;
+        }
+
+        public boolean isBarrier() {
+            return barrier;
+        }
+
+        public void setBarrier(boolean barrier) {
+            this.barrier = barrier;
+        }
+
         @Override
         public boolean equals(Object o) {
             if (this == o) return true;
@@ -0,0 +1,81 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2007-2011, Stephen Connolly, Alan Harder, Romain Seguy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package hudson.plugins.locksandlatches;
+
+import hudson.Extension;
+import hudson.cli.CLICommand;
+import hudson.model.Hudson;
+import org.kohsuke.args4j.Argument;
+import org.kohsuke.args4j.Option;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Takes locks for a process outside Hudson if they are free, printing the
+ * token to renew and release them with.
+ *
+ * @since 0.7
+ * @see LockRenewCommand
+ * @see LockReleaseCommand
+ */
+@Extension
+public class LockAcquireCommand extends CLICommand {
+    @Argument(metaVar = "LOCK", usage = "Locks or pools to take", required = true, multiValued = true)
+    public List<String> names = new ArrayList<String>();
+
+    @Option(name = "-shared", usage = "Take the locks shared")
+    public boolean shared;
+
+    @Option(name = "-ttl", usage = "Seconds the lease lasts unless renewed")
+    public int ttl = LockWrapper.DEFAULT_LEASE_SECONDS;
+
+    @Option(name = "-client", usage = "Who takes the locks, shown to whoever looks at the holders")
+    public String client = "CLI";
+
+    @Override
+    public String getShortDescription() {
+        return "Takes locks if they are free and prints the lease token";
+    }
+
+    @Override
+    protected int run() throws Exception {
+        Hudson.getInstance().checkPermission(Hudson.ADMINISTER);
+        LockLeases.Lease lease;
+        try {
+            lease = LockWrapper.DESCRIPTOR.acquireLease(names, shared, client, TimeUnit.SECONDS.toMillis(ttl));
+        } catch (IllegalArgumentException e) {
+            stderr.println(e.getMessage());
+            return 2;
+        }
+        if (lease == null) {
+            stderr.println("Locks busy: " + names);
+            return 1;
+        }
+        stdout.println(lease.getToken());
+        return 0;
+    }
+}
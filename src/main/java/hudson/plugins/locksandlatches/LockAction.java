@@ -0,0 +1,128 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2007-2011, Stephen Connolly, Alan Harder, Romain Seguy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package hudson.plugins.locksandlatches;
+
+import hudson.model.Action;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Records on a build which locks it got through {@link LockWrapper}, how long
+ * it waited for them and how long it held them. Shown in the remote API of
+ * the build.
+ *
+ * @since 0.7
+ */
+@ExportedBean
+public class LockAction implements Action {
+    private final List<LockRecord> locks = new ArrayList<LockRecord>();
+
+    /**
+     * The locks the build runs without, after giving up waiting for them.
+     */
+    private String missing;
+
+    public String getIconFileName() {
+        return null;
+    }
+
+    public String getDisplayName() {
+        return "Locks";
+    }
+
+    public String getUrlName() {
+        return null;
+    }
+
+    @Exported
+    public synchronized List<LockRecord> getLocks() {
+        return Collections.unmodifiableList(new ArrayList<LockRecord>(locks));
+    }
+
+    public synchronized void add(LockRecord lock) {
+        locks.add(lock);
+    }
+
+    /**
+     * Returns the comma separated names of the locks the build gave up
+     * waiting for and runs without, or {@code null} if it got them all.
+     */
+    @Exported
+    public String getMissing() {
+        return missing;
+    }
+
+    public void setMissing(String missing) {
+        this.missing = missing;
+    }
+
+    /**
+     * One lock held by the build.
+     */
+    @ExportedBean(defaultVisibility = 2)
+    public static final class LockRecord {
+        private final String name;
+        private final boolean shared;
+        private final long waitMillis;
+        private long holdMillis = -1;
+
+        public LockRecord(String name, boolean shared, long waitMillis) {
+            this.name = name;
+            this.shared = shared;
+            this.waitMillis = waitMillis;
+        }
+
+        @Exported
+        public String getName() {
+            return name;
+        }
+
+        @Exported
+        public boolean isShared() {
+            return shared;
+        }
+
+        @Exported
+        public long getWaitMillis() {
+            return waitMillis;
+        }
+
+        /**
+         * How long the lock was held, or -1 while it still is.
+         */
+        @Exported
+        public long getHoldMillis() {
+            return holdMillis;
+        }
+
+        public void setHoldMillis(long holdMillis) {
+            this.holdMillis = holdMillis;
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2007-2011, Stephen Connolly, Alan Harder, Romain Seguy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package hudson.plugins.locksandlatches;
+
+import hudson.plugins.locksandlatches.LockWrapper.LockHandle;
+import hudson.plugins.locksandlatches.LockWrapper.NamedReentrantLock;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Where the locks taken by {@link LockWrapper} are actually held.
+ * <p>
+ * The builds of this Hudson always coordinate through the {@link LockTable}.
+ * A backend may additionally make them coordinate with other Hudson
+ * instances, which is why every lock a build takes or gives back goes
+ * through the backend.
+ *
+ * @since 0.7
+ * @see MemoryLockBackend
+ * @see SharedFileLockBackend
+ */
+public interface LockBackend {
+    /**
+     * Gets all the locks, waiting for them to be released as long as needed.
+     *
+     * @param locks    the locks, which must be sorted by name.
+     * @param owner    who the locks are taken for, normally the build.
+     * @param priority how urgently the owner needs the locks, higher first.
+     * @param maxWait  the maximum number of milliseconds to wait, 0 to make a
+     *                 single attempt or a negative number to wait forever.
+     * @param listener told about every failed attempt, may be {@code null}.
+     * @return the locks now held, to be passed to {@link #unlockAll(List, Object)},
+     *         or {@code null} if none of them is.
+     * @see LockTable#lockAll(List, Object, int, long, LockTable.Listener)
+     */
+    List<LockHandle> lockAll(List<LockHandle> locks, Object owner, int priority, long maxWait, LockTable.Listener listener)
+            throws IOException, InterruptedException;
+
+    /**
+     * Releases the locks returned by {@link #lockAll(List, Object, int, long, LockTable.Listener)}.
+     */
+    void unlockAll(List<LockHandle> locks, Object owner);
+
+    /**
+     * Releases the lock held by the owner, however many times it took it.
+     *
+     * @return {@code false} if the owner did not hold the lock.
+     */
+    boolean release(NamedReentrantLock lock, Object owner);
+}
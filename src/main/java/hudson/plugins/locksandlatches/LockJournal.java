@@ -0,0 +1,327 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2007-2011, Stephen Connolly, Alan Harder, Romain Seguy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package hudson.plugins.locksandlatches;
+
+import hudson.model.Hudson;
+import hudson.model.Job;
+import hudson.model.Run;
+import hudson.plugins.locksandlatches.LockWrapper.NamedReentrantLock;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An append-only record of the locks held by builds, so that they are still
+ * held after Hudson restarts.
+ * <p>
+ * Each hold taken or given back adds one line to the journal. The lines are
+ * queued on the building thread and written by a background thread, which
+ * syncs the file to disk once per batch. Every {@link #COMPACT_INTERVAL}, or
+ * sooner if many lines were written, the journal is replaced by the holds
+ * current at that time.
+ * <p>
+ * Replaying the journal gives each hold back to a {@link RestoredOwner}
+ * naming the build, without looking the build up. {@link LockReaper} later
+ * hands the hold over to the build if it is still running, and releases it
+ * otherwise.
+ *
+ * @since 0.7
+ */
+public final class LockJournal implements LockTable.HoldListener {
+    /**
+     * The longest time between two compactions of a journal that changed.
+     */
+    static final long COMPACT_INTERVAL = 10 * 60 * 1000L;
+
+    /**
+     * The number of lines after which the journal is compacted anyway.
+     */
+    static final int COMPACT_THRESHOLD = 10000;
+
+    private static final String CHARSET = "UTF-8";
+    private static final String HELD = "A";
+    private static final String RELEASED = "R";
+    private static final String SHARED = "S";
+    private static final String EXCLUSIVE = "X";
+
+    private final File file;
+    private final LockTable table;
+    private final BlockingQueue<String> pending = new LinkedBlockingQueue<String>();
+
+    /**
+     * Only used by the writer thread.
+     */
+    private FileOutputStream out;
+    private Writer writer;
+    private int written;
+    private long lastCompaction = System.currentTimeMillis();
+
+    public LockJournal(File file, LockTable table) {
+        this.file = file;
+        this.table = table;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Gives back the holds recorded in the journal to {@link RestoredOwner}s.
+     * Must be called before {@link #start()}.
+     *
+     * @return the number of holds given back.
+     */
+    public int replay() throws IOException {
+        if (!file.exists()) {
+            return 0;
+        }
+        // lock and owner of each hold, in the order they were taken
+        Map<String, String[]> holds = new LinkedHashMap<String, String[]>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), CHARSET));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t");
+                if (fields.length != 4) {
+                    // the end of a line cut short by a crash
+                    continue;
+                }
+                String key = fields[3] + '\t' + fields[2];
+                if (HELD.equals(fields[0])) {
+                    holds.put(key, fields);
+                } else if (RELEASED.equals(fields[0])) {
+                    holds.remove(key);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        for (String[] fields : holds.values()) {
+            table.getLock(fields[3]).restore(new RestoredOwner(fields[2]), SHARED.equals(fields[1]));
+        }
+        // start over from a compacted journal
+        written = COMPACT_THRESHOLD;
+        return holds.size();
+    }
+
+    /**
+     * Starts recording the holds of the lock table.
+     */
+    public void start() {
+        table.setHoldListener(this);
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                writeLoop();
+            }
+        }, "locks-and-latches journal writer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void held(NamedReentrantLock lock, Object owner, boolean shared) {
+        String id = idOf(owner);
+        if (id != null) {
+            pending.add(record(HELD, shared, id, lock.getName()));
+        }
+    }
+
+    public void released(NamedReentrantLock lock, Object owner) {
+        String id = idOf(owner);
+        if (id != null) {
+            pending.add(record(RELEASED, false, id, lock.getName()));
+        }
+    }
+
+    private static String record(String event, boolean shared, String id, String lock) {
+        return event + '\t' + (shared ? SHARED : EXCLUSIVE) + '\t' + id + '\t' + lock + '\n';
+    }
+
+    /**
+     * Returns the name under which the holds of the owner are recorded, or
+     * {@code null} if they are not worth keeping over a restart.
+     */
+    static String idOf(Object owner) {
+        if (owner instanceof RestoredOwner) {
+            return ((RestoredOwner) owner).getId();
+        }
+        if (owner instanceof Run) {
+            Run run = (Run) owner;
+            return run.getParent().getFullName() + '#' + run.getNumber();
+        }
+        return null;
+    }
+
+    private void writeLoop() {
+        List<String> batch = new ArrayList<String>();
+        while (true) {
+            try {
+                String record = pending.poll(COMPACT_INTERVAL, TimeUnit.MILLISECONDS);
+                if (record != null) {
+                    batch.add(record);
+                    pending.drainTo(batch);
+                    append(batch);
+                    batch.clear();
+                }
+                long now = System.currentTimeMillis();
+                if (written >= COMPACT_THRESHOLD || written > 0 && now - lastCompaction >= COMPACT_INTERVAL) {
+                    compact();
+                    lastCompaction = now;
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to write the lock journal " + file, e);
+                batch.clear();
+                // the next compaction writes down the holds that were missed
+                written = COMPACT_THRESHOLD;
+                close();
+            }
+        }
+    }
+
+    private void append(List<String> batch) throws IOException {
+        if (writer == null) {
+            out = new FileOutputStream(file, true);
+            writer = new OutputStreamWriter(out, CHARSET);
+        }
+        for (String record : batch) {
+            writer.write(record);
+        }
+        writer.flush();
+        out.getChannel().force(false);
+        written += batch.size();
+    }
+
+    /**
+     * Replaces the journal by the holds currently in the lock table. Records
+     * still queued are appended afterwards; replaying them again is harmless
+     * since only the last record of a hold counts.
+     */
+    private void compact() throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream tmpOut = new FileOutputStream(tmp);
+        try {
+            Writer tmpWriter = new OutputStreamWriter(tmpOut, CHARSET);
+            for (NamedReentrantLock lock : table.getLocks()) {
+                for (Map.Entry<Object, Boolean> holder : lock.getHolderModes().entrySet()) {
+                    String id = idOf(holder.getKey());
+                    if (id != null) {
+                        tmpWriter.write(record(HELD, holder.getValue(), id, lock.getName()));
+                    }
+                }
+            }
+            tmpWriter.flush();
+            tmpOut.getChannel().force(false);
+        } finally {
+            tmpOut.close();
+        }
+        close();
+        if (!tmp.renameTo(file) && !(file.delete() && tmp.renameTo(file))) {
+            throw new IOException("Failed to replace " + file + " with " + tmp);
+        }
+        written = 0;
+    }
+
+    private void close() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Failed to close the lock journal " + file, e);
+            }
+        }
+        out = null;
+        writer = null;
+    }
+
+    /**
+     * Stands for the build that held a lock before Hudson restarted.
+     */
+    public static final class RestoredOwner {
+        private final String id;
+
+        public RestoredOwner(String id) {
+            this.id = id;
+        }
+
+        /**
+         * Returns the full name of the job and the build number, separated by {@code #}.
+         */
+        public String getId() {
+            return id;
+        }
+
+        /**
+         * Looks up the build, returning {@code null} if it no longer exists.
+         */
+        public Run resolve() {
+            int hash = id.lastIndexOf('#');
+            if (hash < 0) {
+                return null;
+            }
+            Job job = Hudson.getInstance().getItemByFullName(id.substring(0, hash), Job.class);
+            if (job == null) {
+                return null;
+            }
+            try {
+                return job.getBuildByNumber(Integer.parseInt(id.substring(hash + 1)));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof RestoredOwner && id.equals(((RestoredOwner) o).id);
+        }
+
+        @Override
+        public int hashCode() {
+            return id.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return id + " (before restart)";
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(LockJournal.class.getName());
+}
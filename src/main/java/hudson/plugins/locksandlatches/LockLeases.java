@@ -0,0 +1,189 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2007-2011, Stephen Connolly, Alan Harder, Romain Seguy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package hudson.plugins.locksandlatches;
+
+import hudson.plugins.locksandlatches.LockWrapper.LockHandle;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Locks taken by processes outside Hudson, each identified by a token.
+ * <p>
+ * Taking locks is a single attempt that never waits, so that a caller can
+ * retry at its own pace without holding a thread here. The locks go through
+ * the {@link LockBackend} like those of the builds, so a lease also keeps
+ * out the other Hudson instances sharing them. A lease that is not
+ * renewed before it expires is released, so a client that dies cannot keep
+ * its locks.
+ *
+ * @since 0.7
+ */
+public final class LockLeases {
+    private final ConcurrentMap<String, Lease> leases = new ConcurrentHashMap<String, Lease>();
+
+    /**
+     * Takes all the locks if they are free right now.
+     *
+     * @param backend     where the locks are taken, and given back once the
+     *                    lease is over.
+     * @param locks       the locks, which must be sorted by name.
+     * @param client      describes who takes the locks, shown to whoever
+     *                    looks at the holders.
+     * @param ttl         the number of milliseconds the lease lasts unless renewed.
+     * @param cleanup     run once the lease is over, whether it was granted or
+     *                    not; may be {@code null}.
+     * @return the lease, or {@code null} if one of the locks is busy.
+     */
+    public Lease tryAcquire(LockBackend backend, List<LockHandle> locks, String client, long ttl, Runnable cleanup)
+            throws IOException, InterruptedException {
+        Lease lease = new Lease(UUID.randomUUID().toString(), client, ttl, backend, cleanup);
+        List<LockHandle> held = null;
+        try {
+            held = backend.lockAll(locks, lease, 0, 0, null);
+        } finally {
+            if (held == null) {
+                lease.cleanup();
+            }
+        }
+        if (held == null) {
+            return null;
+        }
+        lease.held = held;
+        leases.put(lease.token, lease);
+        return lease;
+    }
+
+    public Lease get(String token) {
+        return token == null ? null : leases.get(token);
+    }
+
+    /**
+     * Extends the lease by its time to live.
+     *
+     * @return {@code false} if there is no such lease, for instance because it expired.
+     */
+    public boolean renew(String token) {
+        Lease lease = get(token);
+        if (lease == null) {
+            return false;
+        }
+        lease.expires = System.currentTimeMillis() + lease.ttl;
+        return true;
+    }
+
+    /**
+     * Releases the locks of the lease.
+     *
+     * @return {@code false} if there is no such lease.
+     */
+    public boolean release(String token) {
+        Lease lease = token == null ? null : leases.remove(token);
+        if (lease == null) {
+            return false;
+        }
+        lease.backend.unlockAll(lease.held, lease);
+        lease.cleanup();
+        return true;
+    }
+
+    /**
+     * Releases the leases that expired.
+     *
+     * @return the expired leases.
+     */
+    public List<Lease> expire(long now) {
+        List<Lease> expired = new ArrayList<Lease>();
+        for (Lease lease : leases.values()) {
+            if (lease.expires <= now && release(lease.token)) {
+                expired.add(lease);
+            }
+        }
+        return expired;
+    }
+
+    public Collection<Lease> getLeases() {
+        return Collections.unmodifiableCollection(leases.values());
+    }
+
+    /**
+     * Locks held on behalf of a client; also the owner of these locks.
+     */
+    public static final class Lease {
+        private final String token;
+        private final String client;
+        private final long ttl;
+        private final LockBackend backend;
+        private final Runnable cleanup;
+        private volatile List<LockHandle> held = Collections.emptyList();
+        private volatile long expires;
+
+        private Lease(String token, String client, long ttl, LockBackend backend, Runnable cleanup) {
+            this.token = token;
+            this.client = client;
+            this.ttl = ttl;
+            this.backend = backend;
+            this.cleanup = cleanup;
+            this.expires = System.currentTimeMillis() + ttl;
+        }
+
+        public String getToken() {
+            return token;
+        }
+
+        public String getClient() {
+            return client;
+        }
+
+        /**
+         * Returns the locks held, including the members chosen for pools.
+         */
+        public List<LockHandle> getHeld() {
+            return Collections.unmodifiableList(held);
+        }
+
+        public long getExpires() {
+            return expires;
+        }
+
+        private void cleanup() {
+            if (cleanup != null) {
+                cleanup.run();
+            }
+        }
+
+        @Override
+        public String toString() {
+            // never show the token, it is what lets a client release the locks
+            return "lease of " + client;
+        }
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2007-2011, Stephen Connolly, Alan Harder, Romain Seguy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package hudson.plugins.locksandlatches;
+
+import hudson.Extension;
+import hudson.model.Cause;
+import hudson.model.CauseAction;
+import hudson.model.Hudson;
+import hudson.model.Job;
+import hudson.model.PeriodicWork;
+import hudson.model.Queue;
+import hudson.model.Run;
+import hudson.plugins.locksandlatches.LockWrapper.LockHandle;
+import hudson.plugins.locksandlatches.LockWrapper.LockWaiter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+/**
+ * Looks for builds deadlocked or starved while waiting for locks, whether in
+ * {@link LockWrapper#setUp} or in the queue, and warns about them in the log once.
+ *
+ * @since 0.7
+ * @see LockStatusLink
+ */
+@Extension
+public class LockMonitor extends PeriodicWork {
+    /**
+     * How long a build can wait for its locks before it is reported as starved.
+     */
+    public static final long STARVATION_THRESHOLD =
+            Long.getLong(LockMonitor.class.getName() + ".starvationMinutes", 30L) * MIN;
+
+    /**
+     * What has been reported already, to report it only once.
+     */
+    private Set<String> reported = new HashSet<String>();
+
+    @Override
+    public long getRecurrencePeriod() {
+        return MIN;
+    }
+
+    @Override
+    protected void doRun() {
+        WaitForGraph graph = getGraph();
+        Set<String> current = new HashSet<String>();
+        for (List<Object> cycle : graph.findCycles()) {
+            String key = "deadlock " + cycle;
+            if (current.add(key) && !reported.contains(key)) {
+                LOGGER.severe("Builds waiting for each other's locks, they will never get them: " + describe(graph, cycle));
+            }
+        }
+        for (List<Object> cycle : graph.findPossibleCycles()) {
+            String key = "possible deadlock " + cycle;
+            if (current.add(key) && !reported.contains(key)) {
+                LOGGER.warning("Builds that may be waiting for each other's locks, they will never get them "
+                        + "if the upstream builds wait for their downstream builds: " + describe(graph, cycle));
+            }
+        }
+        long now = System.currentTimeMillis();
+        for (LockWaiter waiter : graph.findStarved(STARVATION_THRESHOLD, now)) {
+            String key = "starved " + waiter.getOwner();
+            if (current.add(key) && !reported.contains(key)) {
+                LOGGER.warning(waiter.getOwner() + " has been waiting for its locks for "
+                        + (now - waiter.getSince()) / MIN + " minutes, last blocked by " + waiter.getBlocker());
+            }
+        }
+        reported = current;
+    }
+
+    /**
+     * Returns the wait-for graph of the locks, plus the builds kept in the
+     * queue until their locks are free, and as possible waits only, the
+     * running upstream builds of the builds waiting for a lock: a trigger
+     * need not wait for the build it starts, and nothing tells whether it does.
+     */
+    public static WaitForGraph getGraph() {
+        LockTable table = LockWrapper.DESCRIPTOR.getLockTable();
+        WaitForGraph graph = WaitForGraph.of(table);
+        for (Queue.Item item : Hudson.getInstance().getQueue().getItems()) {
+            LockWrapper wrapper = item instanceof Queue.WaitingItem ? null : LockQueueTaskDispatcher.getWrapper(item.task);
+            LockHandle busy = wrapper == null ? null : wrapper.getPlan().findBusyLock(table);
+            if (busy != null) {
+                LockWaiter waiter = new LockWaiter(new QueuedBuild(item), wrapper.getPriority(item), item.getInQueueSince());
+                waiter.setBlocker(busy);
+                graph.addWaiter(waiter);
+            }
+        }
+        for (Object owner : new ArrayList<Object>(graph.getWaiters().keySet())) {
+            Cause.UpstreamCause cause = getUpstreamCause(owner);
+            if (cause == null) {
+                continue;
+            }
+            Job upstream = Hudson.getInstance().getItemByFullName(cause.getUpstreamProject(), Job.class);
+            Run build = upstream == null ? null : upstream.getBuildByNumber(cause.getUpstreamBuild());
+            if (build != null && build.isBuilding()) {
+                graph.addPossibleEdge(build, owner, "downstream build");
+            }
+        }
+        return graph;
+    }
+
+    private static Cause.UpstreamCause getUpstreamCause(Object owner) {
+        if (owner instanceof Run) {
+            return (Cause.UpstreamCause) ((Run) owner).getCause(Cause.UpstreamCause.class);
+        }
+        if (owner instanceof QueuedBuild) {
+            CauseAction causes = ((QueuedBuild) owner).getItem().getAction(CauseAction.class);
+            for (Cause cause : causes == null ? Collections.<Cause>emptyList() : causes.getCauses()) {
+                if (cause instanceof Cause.UpstreamCause) {
+                    return (Cause.UpstreamCause) cause;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Describes a group of builds waiting for each other as who waits for whom and why.
+     */
+    static String describe(WaitForGraph graph, List<Object> cycle) {
+        StringBuilder buf = new StringBuilder();
+        describe(buf, graph.getEdges(), cycle, " waits for ");
+        describe(buf, graph.getPossibleEdges(), cycle, " may wait for ");
+        return buf.toString();
+    }
+
+    private static void describe(StringBuilder buf, Map<Object, Map<Object, String>> edges, List<Object> cycle, String verb) {
+        for (Object from : cycle) {
+            Map<Object, String> targets = edges.get(from);
+            if (targets == null) {
+                continue;
+            }
+            for (Map.Entry<Object, String> to : targets.entrySet()) {
+                if (cycle.contains(to.getKey())) {
+                    if (buf.length() > 0) {
+                        buf.append(", ");
+                    }
+                    buf.append(from).append(verb).append(to.getKey())
+                            .append(" (").append(to.getValue()).append(')');
+                }
+            }
+        }
+    }
+
+    /**
+     * Stands for a build kept in the queue until its locks are free.
+     */
+    public static final class QueuedBuild {
+        private final Queue.Item item;
+
+        public QueuedBuild(Queue.Item item) {
+            this.item = item;
+        }
+
+        public Queue.Item getItem() {
+            return item;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            // the Queue holds a single item per task
+            return o instanceof QueuedBuild && item.task.equals(((QueuedBuild) o).item.task);
+        }
+
+        @Override
+        public int hashCode() {
+            return item.task.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return item.task.getFullDisplayName() + " (in the queue)";
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(LockMonitor.class.getName());
+}
@@ -0,0 +1,233 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2007-2011, Stephen Connolly, Alan Harder, Romain Seguy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package hudson.plugins.locksandlatches;
+
+import hudson.model.Resource;
+import hudson.model.ResourceList;
+import hudson.plugins.locksandlatches.LockWrapper.LockConfig;
+import hudson.plugins.locksandlatches.LockWrapper.LockHandle;
+import hudson.plugins.locksandlatches.LockWrapper.LockWaitConfig;
+import hudson.plugins.locksandlatches.LockWrapper.NamedReentrantLock;
+import org.apache.commons.lang.StringUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * What a job asks for, worked out once from its lock entries and the global
+ * configuration: the locks and pools sorted by name, the resources the Queue
+ * checks, and the value of the {@code LOCKS} build variable.
+ * <p>
+ * The Queue asks a blocked job for its resources on every maintenance, so
+ * {@link LockWrapper} keeps its plan until the job or the global
+ * configuration changes, which the {@link #getVersion() version} tells.
+ *
+ * @since 0.7
+ */
+public final class LockPlan {
+    private final int version;
+    private final SortedMap<String, Boolean> lockModes;
+    private final SortedMap<String, LockWaitConfig> poolRequests;
+    private final Map<String, List<String>> poolMembers;
+    /**
+     * Every lock the job may take, the members of its pools included, mapped
+     * to whether shared access is enough.
+     */
+    private final Map<String, Boolean> contended;
+    private final ResourceList resources = new ResourceList();
+    private final String names;
+
+    /**
+     * @param locks   the lock entries of the job, with their names resolved.
+     * @param pools   the members of each configured pool.
+     * @param index   the configured locks, by name.
+     * @param version the version of the global configuration the above come from.
+     */
+    public LockPlan(List<LockWaitConfig> locks, Map<String, List<String>> pools, Map<String, LockConfig> index, int version) {
+        this.version = version;
+        // a lock listed twice is only taken once, exclusively if either entry asks for that
+        SortedMap<String, Boolean> modes = new TreeMap<String, Boolean>();
+        SortedMap<String, LockWaitConfig> requests = new TreeMap<String, LockWaitConfig>();
+        Map<String, List<String>> members = new HashMap<String, List<String>>();
+        StringBuilder names = new StringBuilder();
+        for (LockWaitConfig lock : locks) {
+            String name = lock.getName();
+            if (StringUtils.isBlank(name)) {
+                continue;
+            }
+            if (names.length() > 0) {
+                names.append(',');
+            }
+            names.append(name);
+            if (pools.containsKey(name)) {
+                LockWaitConfig other = requests.get(name);
+                requests.put(name, other == null ? lock : new LockWaitConfig(name,
+                        other.isShared() && lock.isShared(), other.getCount() + lock.getCount()));
+                members.put(name, pools.get(name));
+            } else {
+                Boolean shared = modes.get(name);
+                modes.put(name, (shared == null || shared) && lock.isShared());
+            }
+        }
+        this.lockModes = Collections.unmodifiableSortedMap(modes);
+        this.poolRequests = Collections.unmodifiableSortedMap(requests);
+        this.poolMembers = members;
+        this.names = names.toString();
+        Map<String, Boolean> contended = new HashMap<String, Boolean>(modes);
+        for (LockWaitConfig pool : requests.values()) {
+            for (String member : members.get(pool.getName())) {
+                Boolean shared = contended.get(member);
+                contended.put(member, (shared == null || shared) && pool.isShared());
+            }
+        }
+        this.contended = contended;
+
+        for (LockWaitConfig lock : locks) {
+            if (StringUtils.isBlank(lock.getName()) || lock.isParameterised()) {
+                // which lock it is only becomes known once the build runs
+                continue;
+            }
+            Resource resource;
+            if (members.containsKey(lock.getName())) {
+                // the Queue cannot express "any k of", so approximate with how many such builds fit in the pool
+                int capacity = 0;
+                for (String member : members.get(lock.getName())) {
+                    capacity += getCapacity(index, member);
+                }
+                resource = new Resource(null, "locks-and-latches/pool/" + lock.getName(), Math.max(1, capacity / lock.getCount()));
+            } else {
+                resource = new Resource(null, "locks-and-latches/lock/" + lock.getName(), getCapacity(index, lock.getName()));
+            }
+            if (lock.isShared()) {
+                resources.r(resource);
+            } else {
+                resources.w(resource);
+            }
+        }
+    }
+
+    private static int getCapacity(Map<String, LockConfig> index, String name) {
+        LockConfig lock = index.get(name);
+        return lock == null ? 1 : lock.getCapacity();
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * Returns the names of the locks asked for, mapped to whether shared
+     * access is enough, sorted by name so that we _always_ ask for the locks
+     * in order.
+     */
+    public SortedMap<String, Boolean> getLockModes() {
+        return lockModes;
+    }
+
+    /**
+     * Returns the pools asked for, sorted by name, with the counts of the
+     * entries for the same pool added up.
+     */
+    public SortedMap<String, LockWaitConfig> getPoolRequests() {
+        return poolRequests;
+    }
+
+    /**
+     * Returns the resources the Queue checks before starting the job. They
+     * must not be changed.
+     */
+    public ResourceList getResourceList() {
+        return resources;
+    }
+
+    /**
+     * Returns the comma separated names of the locks and pools asked for.
+     */
+    public String getNames() {
+        return names;
+    }
+
+    /**
+     * Tells whether a build following this plan can keep one following the
+     * other from getting a lock: they may take the same lock, and not both
+     * shared.
+     */
+    public boolean competesWith(LockPlan other) {
+        for (Map.Entry<String, Boolean> mode : contended.entrySet()) {
+            Boolean shared = other.contended.get(mode.getKey());
+            if (shared != null && !(shared && mode.getValue())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the "real" locks, which stay in the lock table until they are
+     * passed to {@link LockTable#dereference(List)}.
+     */
+    public List<LockHandle> reference(LockTable table) {
+        List<LockHandle> handles = table.reference(lockModes);
+        for (LockWaitConfig pool : poolRequests.values()) {
+            handles.add(table.referencePool(pool.getName(), poolMembers.get(pool.getName()), pool.getCount(), pool.isShared()));
+        }
+        return handles;
+    }
+
+    /**
+     * Returns the first lock that could not be taken right now, with only the
+     * busy members for a pool, or {@code null} if all of them could be.
+     * Nothing is acquired.
+     */
+    public LockHandle findBusyLock(LockTable table) {
+        for (Map.Entry<String, Boolean> mode : lockModes.entrySet()) {
+            NamedReentrantLock lock = table.peekLock(mode.getKey());
+            if (lock != null && !lock.isAvailable(mode.getValue())) {
+                return new LockHandle(lock, mode.getValue());
+            }
+        }
+        for (LockWaitConfig pool : poolRequests.values()) {
+            List<NamedReentrantLock> busy = new ArrayList<NamedReentrantLock>();
+            int available = 0;
+            for (String member : poolMembers.get(pool.getName())) {
+                NamedReentrantLock lock = table.peekLock(member);
+                if (lock == null || lock.isAvailable(pool.isShared())) {
+                    available++;
+                } else {
+                    busy.add(lock);
+                }
+            }
+            if (available < pool.getCount()) {
+                return new LockHandle(pool.getName(), busy, pool.getCount(), pool.isShared());
+            }
+        }
+        return null;
+    }
+}
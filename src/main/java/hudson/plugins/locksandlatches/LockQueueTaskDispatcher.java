@@ -0,0 +1,321 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2007-2011, Stephen Connolly, Alan Harder, Romain Seguy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package hudson.plugins.locksandlatches;
+
+import hudson.Extension;
+import hudson.matrix.MatrixConfiguration;
+import hudson.model.BuildableItemWithBuildWrappers;
+import hudson.model.Computer;
+import hudson.model.Hudson;
+import hudson.model.Node;
+import hudson.model.Queue;
+import hudson.model.Queue.Task;
+import hudson.plugins.locksandlatches.LockWrapper.LockHandle;
+import hudson.plugins.locksandlatches.LockWrapper.LockWaiter;
+import hudson.plugins.locksandlatches.LockWrapper.NamedReentrantLock;
+import hudson.model.queue.CauseOfBlockage;
+import hudson.model.queue.QueueTaskDispatcher;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * Keeps builds in the queue while one of their locks is busy, so that they do
+ * not take an executor only to wait in {@link LockWrapper#setUp}.
+ * <p>
+ * This is only a hint: the locks are not reserved, so a build can still lose
+ * the race for a lock after being dispatched, in which case it waits in
+ * {@link LockWrapper#setUp} as before.
+ * <p>
+ * A build also stays in the queue while a build of higher priority, raised
+ * by one for every {@link LockWaiter#AGING_INTERVAL} in the queue as for the
+ * builds waiting in {@link LockWrapper#setUp}, can start right now on an
+ * idle executor and needs some of the same locks, so that the locks go to
+ * the more urgent one.
+ * <p>
+ * A build with a timeout is only kept that long, and one failing fast not
+ * at all, so that it gives up on its locks as configured.
+ * <p>
+ * The queue is told to look at the builds again when a lock is given back,
+ * and when a rate limited lock has a token again.
+ *
+ * @since 0.7
+ */
+@Extension
+public class LockQueueTaskDispatcher extends QueueTaskDispatcher {
+    private static final Timer TIMER = new Timer("locks-and-latches queue maintenance", true);
+
+    /**
+     * When the next scheduled queue maintenance runs, 0 if none is.
+     */
+    private static long scheduled;
+
+    /**
+     * How long {@link #ranking} is used before being worked out again.
+     */
+    static final long RANKING_INTERVAL = 1000;
+
+    private static volatile Ranking ranking;
+
+    @Override
+    public CauseOfBlockage canTake(Node node, Task task) {
+        LockWrapper wrapper = getWrapper(task);
+        if (wrapper == null) {
+            return null;
+        }
+        Queue queue = Hudson.getInstance().getQueue();
+        Queue.Item item = queue.getItem(task);
+        if (item != null && isOutOfTime(item.getInQueueSince(), wrapper.getMaxWait(), System.currentTimeMillis())) {
+            // setUp then gives up on the locks it cannot get as configured
+            return null;
+        }
+        LockHandle busy = wrapper.findBusyLock();
+        if (busy != null) {
+            long tokenDelay = LockTable.getTokenDelay(busy);
+            if (tokenDelay != Long.MAX_VALUE) {
+                // nothing is given back when the token comes in, so nothing else would tell the queue
+                scheduleMaintenance(tokenDelay);
+            }
+            return new BecauseLockIsBusy(busy.toString());
+        }
+        if (item == null) {
+            return null;
+        }
+        Queue.Item urgent = findMoreUrgent(queue, item, wrapper);
+        return urgent == null ? null : new BecauseLockIsKept(urgent.task.getFullDisplayName());
+    }
+
+    /**
+     * Returns the wrapper taking the locks for the task, or {@code null} if
+     * it takes none of its own.
+     */
+    static LockWrapper getWrapper(Task task) {
+        if (!(task instanceof BuildableItemWithBuildWrappers)) {
+            return null;
+        }
+        LockWrapper wrapper = ((BuildableItemWithBuildWrappers) task).getBuildWrappersList().get(LockWrapper.class);
+        if (wrapper != null && task instanceof MatrixConfiguration
+                && !LockWrapper.MATRIX_SEPARATE.equals(wrapper.getMatrixMode())) {
+            // the runs use the locks their parent build holds, which would always look busy to them
+            return null;
+        }
+        return wrapper;
+    }
+
+    /**
+     * Tells whether a build queued since the given time has waited for its
+     * locks as long as it may, which is not at all if it fails fast.
+     *
+     * @param maxWait the milliseconds the build waits for its locks, -1 for ever.
+     */
+    static boolean isOutOfTime(long inQueueSince, long maxWait, long now) {
+        return maxWait >= 0 && now - inQueueSince >= maxWait;
+    }
+
+    /**
+     * Returns a queued build of higher priority than the item, needing some of
+     * the same locks, that can start right now, if any.
+     */
+    private static Queue.Item findMoreUrgent(Queue queue, Queue.Item item, LockWrapper wrapper) {
+        long now = System.currentTimeMillis();
+        long priority = getEffectivePriority(item, wrapper, now);
+        LockPlan plan = wrapper.getPlan();
+        for (Contender other : getRanking(queue, now).contenders) {
+            if (other.priority <= priority) {
+                break;
+            }
+            if (other.item.task != item.task && plan.competesWith(other.plan)) {
+                return other.item;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the queued builds that could start right now with all their
+     * locks, highest priority first. A queue maintenance asks about every
+     * build in a row, so they are only worked out again once
+     * {@link #RANKING_INTERVAL} has passed.
+     */
+    private static Ranking getRanking(Queue queue, long now) {
+        Ranking ranking = LockQueueTaskDispatcher.ranking;
+        if (ranking != null && now - ranking.time < RANKING_INTERVAL) {
+            return ranking;
+        }
+        List<Contender> contenders = new ArrayList<Contender>();
+        for (Queue.Item item : queue.getItems()) {
+            if (!(item instanceof Queue.BuildableItem)) {
+                continue;
+            }
+            LockWrapper wrapper = getWrapper(item.task);
+            // a build that cannot start would keep the others waiting for nothing
+            if (wrapper != null && wrapper.findBusyLock() == null && canStartNow(item.task)) {
+                contenders.add(new Contender(item, wrapper.getPlan(), getEffectivePriority(item, wrapper, now)));
+            }
+        }
+        Collections.sort(contenders);
+        // published without a monitor, since working it out takes the monitors of the locks
+        LockQueueTaskDispatcher.ranking = ranking = new Ranking(now, contenders);
+        return ranking;
+    }
+
+    /**
+     * Tells whether an executor that could run the task is idle.
+     */
+    private static boolean canStartNow(Task task) {
+        for (Computer computer : Hudson.getInstance().getComputers()) {
+            Node node = computer.getNode();
+            if (node != null && computer.isOnline() && computer.countIdle() > 0 && node.canTake(task) == null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @see LockWaiter#getEffectivePriority(long)
+     */
+    private static long getEffectivePriority(Queue.Item item, LockWrapper wrapper, long now) {
+        return wrapper.getPriority(item) + (now - item.getInQueueSince()) / LockWaiter.AGING_INTERVAL;
+    }
+
+    /**
+     * Has the queue look at the builds it keeps again after the delay, once
+     * for all the requests falling due by then. This runs on a timer thread
+     * rather than in the caller, which may hold the monitor of a lock that
+     * the queue maintenance needs in {@link #canTake}.
+     */
+    static void scheduleMaintenance(long delay) {
+        final long at = System.currentTimeMillis() + delay;
+        synchronized (LockQueueTaskDispatcher.class) {
+            if (scheduled != 0 && scheduled <= at) {
+                return;
+            }
+            scheduled = at;
+        }
+        TIMER.schedule(new TimerTask() {
+            public void run() {
+                synchronized (LockQueueTaskDispatcher.class) {
+                    if (scheduled == at) {
+                        scheduled = 0;
+                    }
+                }
+                Hudson hudson = Hudson.getInstance();
+                if (hudson != null) {
+                    hudson.getQueue().scheduleMaintenance();
+                }
+            }
+        }, delay);
+    }
+
+    /**
+     * Passes the holds on to another listener, and has the queue look at the
+     * builds it keeps again as soon as a lock is given back, instead of at its
+     * next periodic maintenance.
+     */
+    static final class MaintenanceScheduler implements LockTable.HoldListener {
+        private final LockTable.HoldListener next;
+
+        MaintenanceScheduler(LockTable.HoldListener next) {
+            this.next = next;
+        }
+
+        public void held(NamedReentrantLock lock, Object owner, boolean shared) {
+            next.held(lock, owner, shared);
+        }
+
+        public void released(NamedReentrantLock lock, Object owner) {
+            next.released(lock, owner);
+            scheduleMaintenance(0);
+        }
+    }
+
+    /**
+     * The queued builds the others defer to, as of a given time.
+     */
+    private static final class Ranking {
+        private final long time;
+        private final List<Contender> contenders;
+
+        Ranking(long time, List<Contender> contenders) {
+            this.time = time;
+            this.contenders = contenders;
+        }
+    }
+
+    /**
+     * A queued build the others may defer to.
+     */
+    private static final class Contender implements Comparable<Contender> {
+        private final Queue.Item item;
+        private final LockPlan plan;
+        private final long priority;
+
+        Contender(Queue.Item item, LockPlan plan, long priority) {
+            this.item = item;
+            this.plan = plan;
+            this.priority = priority;
+        }
+
+        public int compareTo(Contender other) {
+            return priority > other.priority ? -1 : priority < other.priority ? 1 : 0;
+        }
+    }
+
+    /**
+     * Tells the user which lock the build is waiting for.
+     */
+    public static final class BecauseLockIsBusy extends CauseOfBlockage {
+        private final String lock;
+
+        public BecauseLockIsBusy(String lock) {
+            this.lock = lock;
+        }
+
+        @Override
+        public String getShortDescription() {
+            return "Waiting for lock " + lock;
+        }
+    }
+
+    /**
+     * Tells the user which build of higher priority the locks are kept for.
+     */
+    public static final class BecauseLockIsKept extends CauseOfBlockage {
+        private final String build;
+
+        public BecauseLockIsKept(String build) {
+            this.build = build;
+        }
+
+        @Override
+        public String getShortDescription() {
+            return "Letting " + build + " take the locks first, it has a higher priority";
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2007-2011, Stephen Connolly, Alan Harder, Romain Seguy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package hudson.plugins.locksandlatches;
+
+import hudson.Extension;
+import hudson.model.PeriodicWork;
+import hudson.model.Run;
+import hudson.plugins.locksandlatches.LockJournal.RestoredOwner;
+import hudson.plugins.locksandlatches.LockWrapper.NamedReentrantLock;
+
+import java.util.logging.Logger;
+
+/**
+ * Releases the locks still held by builds that are no longer running, which
+ * happens when a build ends without going through {@link LockWrapper}'s tear
+ * down, and gives the holds restored by the {@link LockJournal} back to their
+ * builds. Without this such a lock would stay held for good. It also
+ * releases the {@link LockLeases leases} that were not renewed in time, and
+ * drops the unused locks that are not configured.
+ *
+ * @since 0.7
+ */
+@Extension
+public class LockReaper extends PeriodicWork {
+    @Override
+    public long getRecurrencePeriod() {
+        return MIN;
+    }
+
+    @Override
+    protected void doRun() {
+        for (LockLeases.Lease lease : LockWrapper.DESCRIPTOR.getLeases().expire(System.currentTimeMillis())) {
+            LOGGER.warning("Released the expired " + lease + ": " + lease.getHeld());
+        }
+        for (NamedReentrantLock lock : LockWrapper.DESCRIPTOR.getLockTable().getLocks()) {
+            for (Object owner : lock.getHolders().keySet()) {
+                if (owner instanceof RestoredOwner) {
+                    reclaim(lock, (RestoredOwner) owner);
+                } else if (owner instanceof Run && !((Run) owner).isBuilding()
+                        && LockWrapper.DESCRIPTOR.getBackend().release(lock, owner)) {
+                    LOGGER.warning("Released lock " + lock.getName() + " leaked by " + owner);
+                }
+            }
+        }
+        int evicted = LockWrapper.DESCRIPTOR.getLockTable().evictIdle();
+        if (evicted > 0) {
+            LOGGER.fine("Dropped " + evicted + " unused locks");
+        }
+    }
+
+    /**
+     * Hands a hold replayed from the {@link LockJournal} over to its build if
+     * it is still running, and releases it otherwise.
+     */
+    private void reclaim(NamedReentrantLock lock, RestoredOwner owner) {
+        Run run = owner.resolve();
+        if (run != null && run.isBuilding()) {
+            if (lock.transfer(owner, run)) {
+                LOGGER.info("Lock " + lock.getName() + " is held by " + run + " again after the restart");
+                return;
+            }
+        }
+        if (LockWrapper.DESCRIPTOR.getBackend().release(lock, owner)) {
+            LOGGER.info("Released lock " + lock.getName() + " held by " + owner);
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(LockReaper.class.getName());
+}
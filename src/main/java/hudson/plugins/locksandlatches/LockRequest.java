@@ -0,0 +1,297 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2007-2011, Stephen Connolly, Alan Harder, Romain Seguy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package hudson.plugins.locksandlatches;
+
+import hudson.plugins.locksandlatches.LockWrapper.LockHandle;
+import hudson.plugins.locksandlatches.LockWrapper.LockWaiter;
+import hudson.plugins.locksandlatches.LockWrapper.NamedReentrantLock;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A request for all of a set of locks that waits without a thread, unlike
+ * {@link LockTable#lockAll(List, Object, int, long, LockTable.Listener)}.
+ * <p>
+ * The request is registered as a waiter on every lock it wants, and each
+ * release of one of them schedules a new attempt on a single shared thread.
+ * Any number of requests can thus wait for their locks, and each is granted
+ * as soon as its locks are free. It follows the same rules as builds waiting
+ * in {@link LockWrapper}, so both share the locks fairly.
+ *
+ * @since 0.7
+ */
+public final class LockRequest {
+    /**
+     * Makes the attempts of all the requests.
+     */
+    private static final ExecutorService ATTEMPTS = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "locks-and-latches lock requests");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * Wakes up requests when their priority goes up, their time runs out or
+     * a rate limited lock has a token for them.
+     */
+    private static final Timer TIMER = new Timer("locks-and-latches lock request timer", true);
+
+    private final List<LockHandle> locks;
+    private final Object owner;
+    private final long maxWait;
+    private final Callback callback;
+    private final Runnable cleanup;
+    private final LockWaiter waiter;
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final long deadline;
+    private TimerTask timer;
+
+    /**
+     * Wakes up the request when a rate limited lock it waits for has a token
+     * for it. Guarded by {@code this}.
+     */
+    private TimerTask tokenTimer;
+
+    /**
+     * Guarded by {@code this}.
+     */
+    private State state = State.NEW;
+    private List<LockHandle> held;
+
+    private enum State {
+        NEW, WAITING, GRANTED, DONE
+    }
+
+    /**
+     * @param locks    the locks, which must be sorted by name.
+     * @param owner    who the locks are taken for.
+     * @param priority how urgently the owner needs the locks, see {@link LockWaiter}.
+     * @param maxWait  the maximum number of milliseconds to wait, 0 to make a
+     *                 single attempt or a negative number to wait forever.
+     * @param callback told when the request is granted or times out.
+     * @param cleanup  run once the request is over, that is after it is
+     *                 released, cancelled or timed out; may be {@code null}.
+     */
+    public LockRequest(List<LockHandle> locks, Object owner, int priority, long maxWait, Callback callback, Runnable cleanup) {
+        this.locks = locks;
+        this.owner = owner;
+        this.maxWait = maxWait;
+        this.callback = callback;
+        this.cleanup = cleanup;
+        this.waiter = new LockWaiter(owner, priority, new Runnable() {
+            public void run() {
+                schedule();
+            }
+        });
+        this.deadline = System.currentTimeMillis() + maxWait;
+    }
+
+    /**
+     * Starts waiting for the locks.
+     *
+     * @return this request.
+     */
+    public LockRequest start() {
+        synchronized (this) {
+            if (state != State.NEW) {
+                throw new IllegalStateException("Already started");
+            }
+            state = State.WAITING;
+        }
+        // register before the first attempt so that a release in between is not lost
+        for (LockHandle lock : locks) {
+            for (NamedReentrantLock candidate : lock.getCandidates()) {
+                candidate.addWaiter(waiter);
+            }
+        }
+        long period = maxWait < 0 ? LockWaiter.AGING_INTERVAL : Math.min(Math.max(maxWait, 1), LockWaiter.AGING_INTERVAL);
+        timer = new TimerTask() {
+            public void run() {
+                schedule();
+            }
+        };
+        TIMER.schedule(timer, period, period);
+        schedule();
+        return this;
+    }
+
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            ATTEMPTS.execute(new Runnable() {
+                public void run() {
+                    scheduled.set(false);
+                    attempt();
+                }
+            });
+        }
+    }
+
+    private void attempt() {
+        synchronized (this) {
+            if (state != State.WAITING) {
+                return;
+            }
+            List<LockHandle> taken = new ArrayList<LockHandle>();
+            LockHandle blocker = LockTable.tryLockAll(locks, waiter, owner, taken);
+            if (blocker == null) {
+                held = taken;
+                state = State.GRANTED;
+            } else {
+                waiter.setBlocker(blocker);
+                if (maxWait < 0 || System.currentTimeMillis() < deadline) {
+                    scheduleToken(blocker);
+                    return;
+                }
+                state = State.DONE;
+            }
+        }
+        stopWaiting();
+        try {
+            if (held != null) {
+                callback.granted(held);
+            } else {
+                cleanup();
+                callback.timedOut();
+            }
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Lock request callback failed for " + owner, e);
+        }
+    }
+
+    private void scheduleToken(LockHandle blocker) {
+        assert Thread.holdsLock(this);
+        long delay = LockTable.getTokenDelay(blocker);
+        if (delay >= LockWaiter.AGING_INTERVAL) {
+            return;
+        }
+        if (tokenTimer != null) {
+            tokenTimer.cancel();
+        }
+        tokenTimer = new TimerTask() {
+            public void run() {
+                schedule();
+            }
+        };
+        TIMER.schedule(tokenTimer, delay);
+    }
+
+    private void stopWaiting() {
+        timer.cancel();
+        synchronized (this) {
+            if (tokenTimer != null) {
+                tokenTimer.cancel();
+            }
+        }
+        for (LockHandle lock : locks) {
+            for (NamedReentrantLock candidate : lock.getCandidates()) {
+                candidate.removeWaiter(waiter);
+            }
+        }
+    }
+
+    private void cleanup() {
+        if (cleanup != null) {
+            cleanup.run();
+        }
+    }
+
+    /**
+     * Gives up waiting for the locks.
+     *
+     * @return {@code false} if the request was no longer waiting, for
+     *         instance because it was granted.
+     */
+    public boolean cancel() {
+        synchronized (this) {
+            if (state != State.WAITING) {
+                return false;
+            }
+            state = State.DONE;
+        }
+        stopWaiting();
+        cleanup();
+        return true;
+    }
+
+    /**
+     * Releases the locks of a granted request.
+     *
+     * @return {@code false} if the request was not granted, or already released.
+     */
+    public boolean release() {
+        List<LockHandle> locks;
+        synchronized (this) {
+            if (state != State.GRANTED) {
+                return false;
+            }
+            state = State.DONE;
+            locks = held;
+        }
+        LockTable.unlockAll(locks, owner);
+        cleanup();
+        return true;
+    }
+
+    /**
+     * Returns the locks held, including the members chosen for pools, or
+     * {@code null} if the request has not been granted.
+     */
+    public synchronized List<LockHandle> getHeld() {
+        return state == State.GRANTED ? held : null;
+    }
+
+    public Object getOwner() {
+        return owner;
+    }
+
+    /**
+     * Told about the outcome of a {@link LockRequest}, on the thread making
+     * the attempts, so it must return quickly.
+     */
+    public interface Callback {
+        /**
+         * Called when all the locks are held, until {@link LockRequest#release()}.
+         */
+        void granted(List<LockHandle> held);
+
+        /**
+         * Called when the request gave up waiting for the locks.
+         */
+        void timedOut();
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(LockRequest.class.getName());
+}
@@ -0,0 +1,186 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2007-2011, Stephen Connolly, Alan Harder, Romain Seguy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package hudson.plugins.locksandlatches;
+
+import hudson.plugins.locksandlatches.LockWrapper.LockWaiter;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An immutable copy of the state of a lock.
+ * <p>
+ * Each lock publishes a new snapshot of its holders whenever they change, so
+ * reading the state of the locks never waits for, or holds up, builds taking
+ * or releasing them. The waiters are read when the snapshot is handed out.
+ *
+ * @since 0.7
+ */
+public final class LockSnapshot {
+    private final String name;
+    private final int capacity;
+    private final List<Holder> holders;
+    private final List<Waiter> waiters;
+    private final long taken;
+
+    LockSnapshot(String name, int capacity, List<Holder> holders) {
+        this.name = name;
+        this.capacity = capacity;
+        this.holders = Collections.unmodifiableList(holders);
+        this.waiters = Collections.emptyList();
+        this.taken = System.currentTimeMillis();
+    }
+
+    /**
+     * Completes the snapshot of the holders with the current waiters.
+     */
+    LockSnapshot(LockSnapshot holders, List<LockWaiter> waiters) {
+        this.name = holders.name;
+        this.capacity = holders.capacity;
+        this.holders = holders.holders;
+        this.taken = holders.taken;
+        List<Waiter> copies = new ArrayList<Waiter>(waiters.size());
+        for (LockWaiter waiter : waiters) {
+            if (waiter.getOwner() != null) {
+                copies.add(new Waiter(waiter));
+            }
+        }
+        this.waiters = Collections.unmodifiableList(copies);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public List<Holder> getHolders() {
+        return holders;
+    }
+
+    public List<Waiter> getWaiters() {
+        return waiters;
+    }
+
+    /**
+     * Returns when the holders last changed.
+     */
+    public long getTaken() {
+        return taken;
+    }
+
+    public JSONObject toJSON(long now) {
+        JSONArray holders = new JSONArray();
+        for (Holder holder : this.holders) {
+            holders.add(new JSONObject()
+                    .element("owner", holder.getOwner())
+                    .element("shared", holder.isShared())
+                    .element("since", holder.getSince())
+                    .element("heldMillis", now - holder.getSince()));
+        }
+        JSONArray waiters = new JSONArray();
+        for (Waiter waiter : this.waiters) {
+            waiters.add(new JSONObject()
+                    .element("owner", waiter.getOwner())
+                    .element("priority", waiter.getPriority())
+                    .element("since", waiter.getSince())
+                    .element("waitingMillis", now - waiter.getSince())
+                    .element("blockedBy", waiter.getBlockedBy()));
+        }
+        return new JSONObject()
+                .element("name", name)
+                .element("capacity", capacity)
+                .element("holders", holders)
+                .element("waiters", waiters);
+    }
+
+    /**
+     * An owner holding the lock.
+     */
+    public static final class Holder {
+        private final String owner;
+        private final boolean shared;
+        private final long since;
+
+        Holder(Object owner, boolean shared, long since) {
+            this.owner = String.valueOf(owner);
+            this.shared = shared;
+            this.since = since;
+        }
+
+        public String getOwner() {
+            return owner;
+        }
+
+        public boolean isShared() {
+            return shared;
+        }
+
+        public long getSince() {
+            return since;
+        }
+    }
+
+    /**
+     * An owner waiting for the lock, possibly among others.
+     */
+    public static final class Waiter {
+        private final String owner;
+        private final int priority;
+        private final long since;
+        private final String blockedBy;
+
+        Waiter(LockWaiter waiter) {
+            this.owner = String.valueOf(waiter.getOwner());
+            this.priority = waiter.getPriority();
+            this.since = waiter.getSince();
+            this.blockedBy = waiter.getBlocker() == null ? null : waiter.getBlocker().toString();
+        }
+
+        public String getOwner() {
+            return owner;
+        }
+
+        public int getPriority() {
+            return priority;
+        }
+
+        public long getSince() {
+            return since;
+        }
+
+        /**
+         * Returns the lock that stopped the owner's last attempt, if known.
+         */
+        public String getBlockedBy() {
+            return blockedBy;
+        }
+    }
+}
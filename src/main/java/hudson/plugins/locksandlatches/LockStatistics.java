@@ -0,0 +1,171 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2007-2011, Stephen Connolly, Alan Harder, Romain Seguy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package hudson.plugins.locksandlatches;
+
+import net.sf.json.JSONObject;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Contention counters of one {@link LockWrapper.NamedReentrantLock}. Recording
+ * only touches atomic counters, so it is cheap enough for the acquisition and
+ * release paths.
+ *
+ * @since 0.7
+ */
+public final class LockStatistics {
+    private final AtomicLong attempts = new AtomicLong();
+    private final AtomicLong failedAttempts = new AtomicLong();
+    private final AtomicLong failedRounds = new AtomicLong();
+    private final AtomicLong acquisitions = new AtomicLong();
+    private final Histogram waitTimes = new Histogram();
+    private final Histogram holdTimes = new Histogram();
+
+    public void recordAttempt(boolean success) {
+        attempts.incrementAndGet();
+        if (!success) {
+            failedAttempts.incrementAndGet();
+        }
+    }
+
+    /**
+     * Records that an all-or-nothing attempt gave up because of this lock.
+     */
+    public void recordFailedRound() {
+        failedRounds.incrementAndGet();
+    }
+
+    public void recordWait(long millis) {
+        acquisitions.incrementAndGet();
+        waitTimes.record(millis);
+    }
+
+    public void recordHold(long millis) {
+        holdTimes.record(millis);
+    }
+
+    public long getAttempts() {
+        return attempts.get();
+    }
+
+    public long getFailedAttempts() {
+        return failedAttempts.get();
+    }
+
+    public long getFailedRounds() {
+        return failedRounds.get();
+    }
+
+    public long getAcquisitions() {
+        return acquisitions.get();
+    }
+
+    public Histogram getWaitTimes() {
+        return waitTimes;
+    }
+
+    public Histogram getHoldTimes() {
+        return holdTimes;
+    }
+
+    public JSONObject toJSON() {
+        JSONObject json = new JSONObject();
+        json.element("attempts", getAttempts());
+        json.element("failedAttempts", getFailedAttempts());
+        json.element("failedRounds", getFailedRounds());
+        json.element("acquisitions", getAcquisitions());
+        json.element("waitTimes", waitTimes.toJSON());
+        json.element("holdTimes", holdTimes.toJSON());
+        return json;
+    }
+
+    /**
+     * A histogram of durations in milliseconds, with one bucket per power of two.
+     */
+    public static final class Histogram {
+        private static final int BUCKETS = 40;
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final AtomicLong total = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        public void record(long millis) {
+            millis = Math.max(0, millis);
+            counts.incrementAndGet(Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(millis)));
+            total.addAndGet(millis);
+            long current;
+            while (millis > (current = max.get()) && !max.compareAndSet(current, millis)) {
+                // retry
+            }
+        }
+
+        public long getCount() {
+            long count = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                count += counts.get(i);
+            }
+            return count;
+        }
+
+        public long getTotal() {
+            return total.get();
+        }
+
+        public long getMax() {
+            return max.get();
+        }
+
+        /**
+         * Returns an upper bound of the given percentile, accurate to a power of two.
+         */
+        public long getPercentile(double percentile) {
+            long count = getCount();
+            if (count == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(count * percentile / 100.0);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts.get(i);
+                if (seen >= rank) {
+                    return Math.min(getMax(), i == 0 ? 0 : (1L << i) - 1);
+                }
+            }
+            return getMax();
+        }
+
+        public JSONObject toJSON() {
+            JSONObject json = new JSONObject();
+            json.element("count", getCount());
+            json.element("totalMillis", getTotal());
+            json.element("maxMillis", getMax());
+            json.element("p50Millis", getPercentile(50));
+            json.element("p90Millis", getPercentile(90));
+            json.element("p99Millis", getPercentile(99));
+            return json;
+        }
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2007-2011, Stephen Connolly, Alan Harder, Romain Seguy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package hudson.plugins.locksandlatches;
+
+import hudson.Extension;
+import hudson.cli.CLICommand;
+import hudson.model.Hudson;
+import org.kohsuke.args4j.Option;
+
+/**
+ * Lists every lock with its holders and waiters.
+ *
+ * @since 0.7
+ */
+@Extension
+public class LockStatusCommand extends CLICommand {
+    @Option(name = "-json", usage = "Print the status as JSON, like the snapshot URL of the lock descriptor")
+    public boolean json;
+
+    @Override
+    public String getShortDescription() {
+        return "Lists the locks with who holds them and who waits for them";
+    }
+
+    @Override
+    protected int run() throws Exception {
+        Hudson.getInstance().checkPermission(Hudson.READ);
+        long now = System.currentTimeMillis();
+        for (LockSnapshot lock : LockWrapper.DESCRIPTOR.getSnapshots()) {
+            if (json) {
+                stdout.println(lock.toJSON(now).toString());
+                continue;
+            }
+            stdout.println(lock.getName() + " (capacity " + lock.getCapacity() + ")");
+            for (LockSnapshot.Holder holder : lock.getHolders()) {
+                stdout.println("  held by " + holder.getOwner() + (holder.isShared() ? " (shared)" : "")
+                        + " for " + (now - holder.getSince()) / 1000 + "s");
+            }
+            for (LockSnapshot.Waiter waiter : lock.getWaiters()) {
+                stdout.println("  wanted by " + waiter.getOwner() + " for " + (now - waiter.getSince()) / 1000 + "s");
+            }
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2007-2011, Stephen Connolly, Alan Harder, Romain Seguy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package hudson.plugins.locksandlatches;
+
+import hudson.Extension;
+import hudson.model.Hudson;
+import hudson.model.ManagementLink;
+import hudson.plugins.locksandlatches.LockWrapper.LockConfig;
+import hudson.plugins.locksandlatches.LockWrapper.LockWaiter;
+import hudson.plugins.locksandlatches.LockWrapper.NamedReentrantLock;
+import org.apache.commons.lang.StringUtils;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * The status page of the locks, showing who holds them, who waits for them
+ * and who blocks whom. It is also where the configured locks are managed in
+ * bulk, a page at a time, when there are too many of them for the global
+ * configuration page.
+ *
+ * @since 0.7
+ */
+@Extension
+public class LockStatusLink extends ManagementLink {
+    /**
+     * The number of locks shown per page.
+     */
+    public static final int PAGE_SIZE = 100;
+
+    @Override
+    public String getIconFileName() {
+        return "secure.gif";
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "Locks";
+    }
+
+    @Override
+    public String getDescription() {
+        return "See who holds each lock, who is waiting for it, and any deadlocked or starved build.";
+    }
+
+    @Override
+    public String getUrlName() {
+        return "locks-and-latches";
+    }
+
+    /**
+     * Returns the locks in use, sorted by name.
+     */
+    public List<NamedReentrantLock> getLocks() {
+        List<NamedReentrantLock> locks = new ArrayList<NamedReentrantLock>(LockWrapper.DESCRIPTOR.getLockTable().getLocks());
+        Collections.sort(locks, new Comparator<NamedReentrantLock>() {
+            public int compare(NamedReentrantLock lock1, NamedReentrantLock lock2) {
+                return lock1.getName().compareToIgnoreCase(lock2.getName());
+            }
+        });
+        return locks;
+    }
+
+    /**
+     * Returns a page of the locks in use whose names contain the filter.
+     */
+    public Page<NamedReentrantLock> getLockPage(String filter, String page) {
+        List<NamedReentrantLock> matching = new ArrayList<NamedReentrantLock>();
+        for (NamedReentrantLock lock : getLocks()) {
+            if (matches(lock.getName(), filter)) {
+                matching.add(lock);
+            }
+        }
+        return new Page<NamedReentrantLock>(matching, page);
+    }
+
+    /**
+     * Returns a page of the configured locks whose names contain the filter.
+     */
+    public Page<LockConfig> getConfigPage(String filter, String page) {
+        List<LockConfig> matching = new ArrayList<LockConfig>();
+        for (LockConfig lock : LockWrapper.DESCRIPTOR.getLocks()) {
+            if (matches(lock.getName(), filter)) {
+                matching.add(lock);
+            }
+        }
+        return new Page<LockConfig>(matching, page);
+    }
+
+    private static boolean matches(String name, String filter) {
+        return StringUtils.isBlank(filter) || name.toLowerCase().contains(filter.trim().toLowerCase());
+    }
+
+    /**
+     * Serves the configured locks in the bulk format, one per line.
+     */
+    public void doExport(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        Hudson.getInstance().checkPermission(Hudson.ADMINISTER);
+        rsp.setContentType("text/plain;charset=UTF-8");
+        rsp.getWriter().print(LockWrapper.DESCRIPTOR.getDefinitions());
+    }
+
+    /**
+     * Adds or replaces locks given in the bulk format, or replaces all of
+     * them when {@code replace} is set.
+     */
+    public void doImport(StaplerRequest req, StaplerResponse rsp, @QueryParameter String definitions,
+                         @QueryParameter boolean replace) throws IOException {
+        Hudson.getInstance().checkPermission(Hudson.ADMINISTER);
+        if (!"POST".equals(req.getMethod())) {
+            rsp.sendError(StaplerResponse.SC_METHOD_NOT_ALLOWED, "POST required");
+            return;
+        }
+        int count;
+        try {
+            count = LockWrapper.DESCRIPTOR.importDefinitions(StringUtils.defaultString(definitions), replace);
+        } catch (IllegalArgumentException e) {
+            rsp.sendError(StaplerResponse.SC_BAD_REQUEST, e.getMessage());
+            return;
+        }
+        LOGGER.info("Imported " + count + " locks" + (replace ? ", replacing all the others" : ""));
+        rsp.sendRedirect2(".");
+    }
+
+    public WaitForGraph getGraph() {
+        return LockMonitor.getGraph();
+    }
+
+    public List<LockWaiter> getStarved(WaitForGraph graph) {
+        return graph.findStarved(LockMonitor.STARVATION_THRESHOLD, System.currentTimeMillis());
+    }
+
+    public String describe(WaitForGraph graph, List<Object> cycle) {
+        return LockMonitor.describe(graph, cycle);
+    }
+
+    /**
+     * Returns for how many minutes the waiter has been waiting.
+     */
+    public long getWaitingMinutes(LockWaiter waiter) {
+        return (System.currentTimeMillis() - waiter.getSince()) / 60000;
+    }
+
+    /**
+     * One page of a list shown {@link #PAGE_SIZE} items at a time.
+     */
+    public static final class Page<T> {
+        private final List<T> items;
+        private final int number;
+        private final int count;
+        private final int total;
+
+        /**
+         * @param all    the whole list.
+         * @param number the page to show, counting from 0; anything that is
+         *               not a page number shows the first page.
+         */
+        Page(List<T> all, String number) {
+            int page;
+            try {
+                page = number == null ? 0 : Integer.parseInt(number.trim());
+            } catch (NumberFormatException e) {
+                page = 0;
+            }
+            this.total = all.size();
+            this.count = Math.max(1, (total + PAGE_SIZE - 1) / PAGE_SIZE);
+            this.number = Math.max(0, Math.min(page, count - 1));
+            this.items = all.subList(this.number * PAGE_SIZE, Math.min(total, (this.number + 1) * PAGE_SIZE));
+        }
+
+        public List<T> getItems() {
+            return items;
+        }
+
+        public int getNumber() {
+            return number;
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        public int getTotal() {
+            return total;
+        }
+
+        public boolean hasPrevious() {
+            return number > 0;
+        }
+
+        public boolean hasNext() {
+            return number < count - 1;
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(LockStatusLink.class.getName());
+}
@@ -0,0 +1,451 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2007-2011, Stephen Connolly, Alan Harder, Romain Seguy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package hudson.plugins.locksandlatches;
+
+import hudson.plugins.locksandlatches.LockWrapper.LockConfig;
+import hudson.plugins.locksandlatches.LockWrapper.LockHandle;
+import hudson.plugins.locksandlatches.LockWrapper.LockWaiter;
+import hudson.plugins.locksandlatches.LockWrapper.NamedReentrantLock;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The {@link NamedReentrantLock}s backing the configured locks, and the
+ * all-or-nothing acquisition used by {@link LockWrapper}.
+ * <p>
+ * There is no global mutex: locks are always requested in the same (sorted)
+ * order and a build that cannot get one of them gives back the ones it
+ * already has, so builds asking for disjoint sets of locks never contend.
+ * <p>
+ * A build can also ask for any {@code k} locks of a pool, in which case it
+ * gets the free members that have been unused for the longest time.
+ *
+ * @since 0.7
+ */
+public final class LockTable {
+    /**
+     * The locks in use, by name. A lock that is not configured is dropped as
+     * soon as nobody references, holds or waits for it; configured ones stay.
+     */
+    private final ConcurrentMap<String, NamedReentrantLock> locks =
+            new ConcurrentHashMap<String, NamedReentrantLock>();
+
+    /**
+     * The configured locks by name. A configured lock is created with its
+     * settings when first used, and then kept even when unused.
+     */
+    private volatile Map<String, LockConfig> configured = Collections.emptyMap();
+
+    /**
+     * Told about every hold taken or given back, if any.
+     */
+    private volatile HoldListener holdListener;
+
+    /**
+     * Returns the lock with the given name if it is in the table, without
+     * creating it.
+     */
+    public NamedReentrantLock peekLock(String name) {
+        return locks.get(name);
+    }
+
+    /**
+     * Returns the lock with the given name, creating it if needed.
+     */
+    public NamedReentrantLock getLock(String name) {
+        NamedReentrantLock lock = locks.get(name);
+        if (lock == null) {
+            NamedReentrantLock created = new NamedReentrantLock(name);
+            LockConfig config = configured.get(name);
+            if (config != null) {
+                apply(created, config);
+            }
+            created.setHoldListener(holdListener);
+            lock = locks.putIfAbsent(name, created);
+            if (lock == null) {
+                lock = created;
+            }
+        }
+        return lock;
+    }
+
+    /**
+     * Returns the locks with the given names, which will stay in the table
+     * until they are passed to {@link #dereference(List)}.
+     *
+     * @param modes the lock names, mapped to whether shared access is enough.
+     */
+    public List<LockHandle> reference(Map<String, Boolean> modes) {
+        List<LockHandle> handles = new ArrayList<LockHandle>(modes.size());
+        for (Map.Entry<String, Boolean> mode : modes.entrySet()) {
+            handles.add(new LockHandle(reference(mode.getKey()), mode.getValue()));
+        }
+        return handles;
+    }
+
+    /**
+     * Returns a handle on {@code count} of the given locks, which will stay in
+     * the table until the handle is passed to {@link #dereference(List)}.
+     *
+     * @param pool    the name of the pool, for display purposes.
+     * @param members the names of the locks in the pool.
+     */
+    public LockHandle referencePool(String pool, Collection<String> members, int count, boolean shared) {
+        List<NamedReentrantLock> candidates = new ArrayList<NamedReentrantLock>(members.size());
+        for (String member : members) {
+            candidates.add(reference(member));
+        }
+        return new LockHandle(pool, candidates, count, shared);
+    }
+
+    private NamedReentrantLock reference(String name) {
+        while (true) {
+            NamedReentrantLock lock = getLock(name);
+            if (lock.reference()) {
+                return lock;
+            }
+            // it was dropped after we looked it up
+            locks.remove(name, lock);
+        }
+    }
+
+    /**
+     * Lets go of locks obtained from {@link #reference(Map)}. Locks that are
+     * not configured are dropped as soon as nobody uses them.
+     */
+    public void dereference(List<LockHandle> handles) {
+        for (LockHandle handle : handles) {
+            for (NamedReentrantLock lock : handle.getCandidates()) {
+                if (lock.dereference() && !configured.containsKey(lock.getName())) {
+                    evict(lock);
+                }
+            }
+        }
+    }
+
+    /**
+     * Sets the configured locks. The locks already in the table get their new
+     * settings, and the unused ones that are no longer configured are
+     * dropped. The others only get into the table when a build uses them.
+     */
+    public void setConfiguredLocks(Map<String, LockConfig> locks) {
+        configured = new HashMap<String, LockConfig>(locks);
+        for (NamedReentrantLock lock : this.locks.values()) {
+            LockConfig config = configured.get(lock.getName());
+            if (config != null) {
+                apply(lock, config);
+            } else {
+                evict(lock);
+            }
+        }
+    }
+
+    private static void apply(NamedReentrantLock lock, LockConfig config) {
+        lock.setCapacity(config.getCapacity());
+        lock.setRate(config.getRate(), config.getBurst());
+    }
+
+    /**
+     * Sets who is told about the holds taken and given back on every lock of
+     * the table.
+     */
+    public void setHoldListener(HoldListener listener) {
+        holdListener = listener;
+        for (NamedReentrantLock lock : locks.values()) {
+            lock.setHoldListener(listener);
+        }
+    }
+
+    /**
+     * Drops the locks that are not configured and that nobody uses, such as
+     * the locks of holds restored after a restart once they are released.
+     *
+     * @return the number of locks dropped.
+     */
+    public int evictIdle() {
+        int evicted = 0;
+        for (NamedReentrantLock lock : locks.values()) {
+            if (!configured.containsKey(lock.getName()) && evict(lock)) {
+                evicted++;
+            }
+        }
+        return evicted;
+    }
+
+    private boolean evict(NamedReentrantLock lock) {
+        if (lock.retire()) {
+            return locks.remove(lock.getName(), lock);
+        }
+        return false;
+    }
+
+    /**
+     * Returns the locks currently in the table.
+     */
+    public Collection<NamedReentrantLock> getLocks() {
+        return Collections.unmodifiableCollection(locks.values());
+    }
+
+    /**
+     * Returns the number of locks currently in the table.
+     */
+    public int size() {
+        return locks.size();
+    }
+
+    /**
+     * Makes one attempt at getting all the locks, in the order given.
+     *
+     * @param locks the locks, which must be sorted by name.
+     * @param self  the waiter of the calling build, which will not be woken up
+     *              when a partially acquired set is given back.
+     * @param owner who the locks are taken for.
+     * @param held  receives the locks actually taken, including the members
+     *              chosen for pools.
+     * @return {@code null} if all the locks are now held, otherwise the lock
+     *         that could not be taken (in which case none are held).
+     */
+    public static LockHandle tryLockAll(List<LockHandle> locks, LockWaiter self, Object owner, List<LockHandle> held) {
+        for (LockHandle lock : locks) {
+            if (!(lock.isPool() ? tryLockPool(lock, self, owner, held) : tryLock(lock, self, owner, held))) {
+                for (NamedReentrantLock candidate : lock.getCandidates()) {
+                    candidate.getStatistics().recordFailedRound();
+                }
+                for (int i = held.size() - 1; i >= 0; i--) {
+                    LockHandle taken = held.get(i);
+                    taken.getLock().rollback(owner, self);
+                }
+                held.clear();
+                return lock;
+            }
+        }
+        return null;
+    }
+
+    private static boolean tryLock(LockHandle lock, LockWaiter self, Object owner, List<LockHandle> held) {
+        if (lock.getLock().tryLock(lock.isShared(), self, owner)) {
+            held.add(lock);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Takes the least recently used free members of a pool.
+     */
+    private static boolean tryLockPool(LockHandle pool, LockWaiter self, Object owner, List<LockHandle> held) {
+        List<NamedReentrantLock> candidates = new ArrayList<NamedReentrantLock>(pool.getCandidates());
+        Collections.sort(candidates, LEAST_RECENTLY_USED);
+        int taken = 0;
+        for (NamedReentrantLock candidate : candidates) {
+            if (taken == pool.getCount()) {
+                break;
+            }
+            if (!isHeld(candidate, held) && candidate.tryLock(pool.isShared(), self, owner)) {
+                held.add(new LockHandle(candidate, pool.isShared()));
+                taken++;
+            }
+        }
+        return taken == pool.getCount();
+    }
+
+    private static boolean isHeld(NamedReentrantLock lock, List<LockHandle> held) {
+        for (LockHandle handle : held) {
+            if (handle.getLock() == lock) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Gets all the locks, waiting for them to be released as long as needed.
+     *
+     * @param locks    the locks, which must be sorted by name.
+     * @param owner    who the locks are taken for, normally the build.
+     * @param priority how urgently the owner needs the locks, see {@link LockWaiter}.
+     * @param maxWait  the maximum number of milliseconds to wait, 0 to make a
+     *                 single attempt or a negative number to wait forever.
+     * @param listener told about every failed attempt, may be {@code null}.
+     * @return the locks now held, to be passed to {@link #unlockAll(List, Object)},
+     *         or {@code null} if none of them is.
+     */
+    public static List<LockHandle> lockAll(List<LockHandle> locks, Object owner, int priority, long maxWait, Listener listener) throws InterruptedException {
+        // register before the first attempt so that a release between a failed round and the wait is not lost
+        LockWaiter waiter = new LockWaiter(owner, priority);
+        for (LockHandle lock : locks) {
+            for (NamedReentrantLock candidate : lock.getCandidates()) {
+                candidate.addWaiter(waiter);
+            }
+        }
+        try {
+            long deadline = System.currentTimeMillis() + maxWait;
+            List<LockHandle> held = new ArrayList<LockHandle>();
+            LockHandle blocker;
+            while ((blocker = tryLockAll(locks, waiter, owner, held)) != null) {
+                waiter.setBlocker(blocker);
+                long remaining = deadline - System.currentTimeMillis();
+                boolean waiting = maxWait < 0 || remaining > 0;
+                if (listener != null) {
+                    listener.blocked(blocker, waiting);
+                }
+                if (!waiting) {
+                    return null;
+                }
+                // wake up when our priority goes up, which may let us overtake another waiter,
+                // or as soon as a rate limited lock has a token for us
+                long wait = Math.min(LockWaiter.AGING_INTERVAL, getTokenDelay(blocker));
+                waiter.await(maxWait < 0 ? wait : Math.min(remaining, wait));
+            }
+            return held;
+        } finally {
+            for (LockHandle lock : locks) {
+                for (NamedReentrantLock candidate : lock.getCandidates()) {
+                    candidate.removeWaiter(waiter);
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets all the locks with the default priority.
+     *
+     * @see #lockAll(List, Object, int, long, Listener)
+     */
+    public static List<LockHandle> lockAll(List<LockHandle> locks, Object owner, long maxWait, Listener listener) throws InterruptedException {
+        return lockAll(locks, owner, 0, maxWait, listener);
+    }
+
+    /**
+     * Returns how long until one of the locks has a token for the next build,
+     * or {@link Long#MAX_VALUE} if none of them is short of tokens.
+     */
+    static long getTokenDelay(LockHandle lock) {
+        long delay = Long.MAX_VALUE;
+        for (NamedReentrantLock candidate : lock.getCandidates()) {
+            long candidateDelay = candidate.getTokenDelay();
+            if (candidateDelay > 0) {
+                delay = Math.min(delay, candidateDelay);
+            }
+        }
+        return delay;
+    }
+
+    /**
+     * Gives back locks taken by an attempt that turned out to fail, without
+     * waking up the builds waiting for them.
+     *
+     * @see NamedReentrantLock#rollback(Object, LockWaiter)
+     */
+    public static void rollbackAll(List<LockHandle> locks, Object owner) {
+        for (int i = locks.size() - 1; i >= 0; i--) {
+            locks.get(i).getLock().rollback(owner, null);
+        }
+    }
+
+    /**
+     * Releases all the locks, waking up any build waiting for them.
+     */
+    public static void unlockAll(List<LockHandle> locks, Object owner) {
+        for (int i = locks.size() - 1; i >= 0; i--) {
+            locks.get(i).getLock().unlock(owner, null);
+        }
+    }
+
+    /**
+     * Releases every lock held by the owner, for instance a build that ended
+     * without going through {@link LockWrapper}'s tear down.
+     *
+     * @return the number of locks released.
+     */
+    public int releaseAll(Object owner) {
+        int released = 0;
+        for (NamedReentrantLock lock : locks.values()) {
+            if (lock.release(owner)) {
+                released++;
+            }
+        }
+        return released;
+    }
+
+    private static final Comparator<NamedReentrantLock> LEAST_RECENTLY_USED = new Comparator<NamedReentrantLock>() {
+        public int compare(NamedReentrantLock o1, NamedReentrantLock o2) {
+            long r1 = o1.getLastReleased();
+            long r2 = o2.getLastReleased();
+            return r1 < r2 ? -1 : r1 > r2 ? 1 : o1.getName().compareTo(o2.getName());
+        }
+    };
+
+    /**
+     * Receives progress of {@link LockTable#lockAll(List, Object, int, long, Listener)}.
+     */
+    public interface Listener {
+        /**
+         * Called when an attempt fails because of {@code blocker}.
+         *
+         * @param waiting whether we are going to wait for another attempt,
+         *                as opposed to giving up.
+         */
+        void blocked(LockHandle blocker, boolean waiting);
+    }
+
+    /**
+     * Tells the time to the token buckets of the locks, so that tests can
+     * move it on.
+     */
+    interface Clock {
+        Clock SYSTEM = new Clock() {
+            public long now() {
+                return System.currentTimeMillis();
+            }
+        };
+
+        long now();
+    }
+
+    /**
+     * Receives the holds taken and given back on a lock, while the lock's
+     * monitor is held, so the calls for one lock come in the order they happened.
+     */
+    public interface HoldListener {
+        /**
+         * Called when the owner gets the lock, but not when it takes it again.
+         */
+        void held(NamedReentrantLock lock, Object owner, boolean shared);
+
+        /**
+         * Called when the owner no longer holds the lock.
+         */
+        void released(NamedReentrantLock lock, Object owner);
+    }
+}
@@ -24,29 +24,39 @@
 
 package hudson.plugins.locksandlatches;
 
+import hudson.EnvVars;
 import hudson.Extension;
 import hudson.Launcher;
+import hudson.Util;
+import hudson.matrix.MatrixBuild;
+import hudson.matrix.MatrixRun;
 import hudson.model.*;
 import hudson.tasks.BuildWrapper;
+import net.sf.json.JSONArray;
 import net.sf.json.JSONObject;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
 import java.util.logging.Logger;
-import org.apache.commons.collections.Closure;
-import org.apache.commons.collections.CollectionUtils;
-import org.apache.commons.collections.Predicate;
 import org.apache.commons.lang.StringUtils;
 
 /**
@@ -58,6 +68,38 @@ import org.apache.commons.lang.StringUtils;
 public class LockWrapper extends BuildWrapper implements ResourceActivity {
     private List<LockWaitConfig> locks;
 
+    /**
+     * The maximum number of minutes to wait for the locks, 0 to wait forever.
+     */
+    private int timeout;
+
+    /**
+     * Whether to give up as soon as a lock is busy instead of waiting for it.
+     */
+    private boolean failFast;
+
+    /**
+     * What happens to the build when it gives up waiting for the locks:
+     * {@code FAILURE}, {@code ABORTED}, or {@code UNSTABLE} to run the build
+     * without the locks.
+     */
+    private String timeoutResult;
+
+    /**
+     * How urgently the build needs its locks when other builds want them
+     * too, higher first. Overridden by the {@link #PRIORITY_PARAMETER} build
+     * parameter.
+     */
+    private int priority;
+
+    /**
+     * How the runs of a multi-configuration job get their locks:
+     * {@link #MATRIX_SEPARATE}, {@link #MATRIX_INHERIT} or {@link #MATRIX_SERIAL}.
+     */
+    private String matrixMode;
+
+    private transient volatile LockPlan plan;
+
     public LockWrapper(List<LockWaitConfig> locks) {
         this.locks = locks;
     }
@@ -68,6 +110,77 @@ public class LockWrapper extends BuildWrapper implements ResourceActivity {
 
     public void setLocks(List<LockWaitConfig> locks) {
         this.locks = locks;
+        plan = null;
+    }
+
+    public int getTimeout() {
+        return timeout;
+    }
+
+    public void setTimeout(int timeout) {
+        this.timeout = timeout;
+    }
+
+    public boolean isFailFast() {
+        return failFast;
+    }
+
+    public void setFailFast(boolean failFast) {
+        this.failFast = failFast;
+    }
+
+    public String getTimeoutResult() {
+        return timeoutResult == null ? Result.FAILURE.toString() : timeoutResult;
+    }
+
+    public void setTimeoutResult(String timeoutResult) {
+        this.timeoutResult = timeoutResult;
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    public void setPriority(int priority) {
+        this.priority = priority;
+    }
+
+    public String getMatrixMode() {
+        return matrixMode == null ? MATRIX_SEPARATE : matrixMode;
+    }
+
+    public void setMatrixMode(String matrixMode) {
+        this.matrixMode = matrixMode;
+    }
+
+    /**
+     * Returns the priority of the build, taken from its
+     * {@link #PRIORITY_PARAMETER} parameter if it has one.
+     */
+    private int getPriority(AbstractBuild build) {
+        Map<String, String> variables = build.getBuildVariables();
+        return getPriority(variables == null ? null : variables.get(PRIORITY_PARAMETER), build);
+    }
+
+    /**
+     * Returns the priority the build will have once the queue item starts,
+     * taken from its {@link #PRIORITY_PARAMETER} parameter if it has one.
+     */
+    int getPriority(hudson.model.Queue.Item item) {
+        ParametersAction parameters = item.getAction(ParametersAction.class);
+        ParameterValue value = parameters == null ? null : parameters.getParameter(PRIORITY_PARAMETER);
+        return getPriority(value instanceof StringParameterValue ? ((StringParameterValue) value).value : null, item);
+    }
+
+    private int getPriority(String value, Object owner) {
+        if (StringUtils.isNotBlank(value)) {
+            try {
+                return Integer.parseInt(value.trim());
+            } catch (NumberFormatException e) {
+                LOGGER.warning("Ignoring " + PRIORITY_PARAMETER + " of " + owner + ", not a number: " + value);
+            }
+        }
+        return priority;
     }
 
     @Override
@@ -82,104 +195,237 @@ public class LockWrapper extends BuildWrapper implements ResourceActivity {
      * @see ResourceActivity#getResourceList()
      */
     public ResourceList getResourceList() {
-        ResourceList resources = new ResourceList();
+        if (getMaxWait() >= 0) {
+            // the queue would keep the build for as long as the locks are busy
+            return new ResourceList();
+        }
+        return getPlan().getResourceList();
+    }
+
+    /**
+     * Returns the plan worked out from {@link #locks}, which is kept until
+     * they or the global configuration change.
+     */
+    LockPlan getPlan() {
+        LockPlan plan = this.plan;
+        if (plan == null || plan.getVersion() != DESCRIPTOR.getConfigVersion()) {
+            this.plan = plan = DESCRIPTOR.newPlan(locks);
+        }
+        return plan;
+    }
+
+    /**
+     * Returns the first lock that could not be taken right now, or
+     * {@code null} if the build could get all of them. Nothing is acquired.
+     */
+    LockHandle findBusyLock() {
+        return getPlan().findBusyLock(DESCRIPTOR.getLockTable());
+    }
+
+    /**
+     * Returns the "real" locks, which stay in the lock table until they are
+     * passed to {@link LockTable#dereference(List)}.
+     */
+    List<LockHandle> referenceLocks() {
+        return getPlan().reference(DESCRIPTOR.getLockTable());
+    }
+
+    /**
+     * Returns a copy of this wrapper with the build variables used in the lock
+     * names, such as {@code deploy-${ENV}}, replaced by their values for the
+     * build, or this wrapper if no lock name uses any.
+     */
+    LockWrapper resolve(AbstractBuild build, TaskListener listener) throws IOException, InterruptedException {
+        boolean parameterised = false;
+        for (LockWaitConfig lock : locks) {
+            parameterised |= lock.isParameterised();
+        }
+        if (!parameterised) {
+            return this;
+        }
+        EnvVars variables = build.getEnvironment(listener);
+        Map<String, String> buildVariables = build.getBuildVariables();
+        if (buildVariables != null) {
+            variables.putAll(buildVariables);
+        }
+        List<LockWaitConfig> resolved = new ArrayList<LockWaitConfig>(locks.size());
         for (LockWaitConfig lock : locks) {
-            resources.w(new Resource(null, "locks-and-latches/lock/" + lock.getName(), DESCRIPTOR.getWriteLockCount()));
+            resolved.add(lock.resolve(variables));
         }
-        return resources;
+        LockWrapper wrapper = new LockWrapper(resolved);
+        wrapper.timeout = timeout;
+        wrapper.failFast = failFast;
+        wrapper.timeoutResult = timeoutResult;
+        wrapper.priority = priority;
+        wrapper.matrixMode = matrixMode;
+        return wrapper;
     }
 
     @Override
-    public Environment setUp(AbstractBuild abstractBuild, Launcher launcher, BuildListener buildListener) throws IOException, InterruptedException {
-        final List<NamedReentrantLock> backups = new ArrayList<NamedReentrantLock>();
-        List<LockWaitConfig> locks = new ArrayList<LockWaitConfig>(this.locks);
+    public Environment setUp(AbstractBuild abstractBuild, Launcher launcher, final BuildListener buildListener) throws IOException, InterruptedException {
+        if (abstractBuild instanceof MatrixRun && !MATRIX_SEPARATE.equals(getMatrixMode())) {
+            // the runs share the locks of their parent, so its variables pick them
+            MatrixRun run = (MatrixRun) abstractBuild;
+            return resolve(run.getParentBuild(), buildListener).setUpMatrixRun(run, buildListener);
+        }
+        return resolve(abstractBuild, buildListener).setUpBuild(abstractBuild, buildListener);
+    }
 
-        // sort this list of locks so that we _always_ ask for the locks in order
-        Collections.sort(locks, new Comparator<LockWaitConfig>() {
-            public int compare(LockWaitConfig o1, LockWaitConfig o2) {
-                return o1.getName().compareTo(o2.getName());
-            }
-        });
+    private Environment setUpBuild(AbstractBuild abstractBuild, final BuildListener buildListener) throws IOException, InterruptedException {
+        final List<LockHandle> backups = referenceLocks();
 
-        // build the list of "real" locks
-        for (LockWaitConfig lock : locks) {
-            NamedReentrantLock backupLock;
-            do {
-                backupLock = DESCRIPTOR.backupLocks.get(lock.getName());
-                if (backupLock == null) {
-                    DESCRIPTOR.backupLocks.putIfAbsent(lock.getName(), new NamedReentrantLock(lock.getName()));
+        buildListener.getLogger().println("[locks-and-latches] Locks to get: " + StringUtils.join(backups, ", "));
+
+        final LockBackend backend = DESCRIPTOR.getBackend();
+        final long started = System.currentTimeMillis();
+        List<LockHandle> locked = null;
+        try {
+            locked = backend.lockAll(backups, abstractBuild, getPriority(abstractBuild), getMaxWait(), new LockTable.Listener() {
+                public void blocked(LockHandle blocker, boolean waiting) {
+                    buildListener.getLogger().println("[locks-and-latches] Could not get " + blocker
+                            + (waiting ? ", waiting for a lock to be released..." : ", giving up"));
                 }
-            } while (backupLock == null);
-            backups.add(backupLock);
+            });
+        } finally {
+            if (locked == null) {
+                DESCRIPTOR.getLockTable().dereference(backups);
+            }
         }
 
-        final StringBuilder locksToGet = new StringBuilder();
-        CollectionUtils.forAllDo(backups, new Closure() {
-            public void execute(Object input) {
-                locksToGet.append(((NamedReentrantLock) input).getName()).append(", ");
-            }
-        });
+        if (locked == null) {
+            return giveUp(abstractBuild, buildListener);
+        }
+        final List<LockHandle> held = locked;
 
-        buildListener.getLogger().println("[locks-and-latches] Locks to get: " + locksToGet.substring(0, locksToGet.length()-2));
+        buildListener.getLogger().println("[locks-and-latches] Have all the locks, build can start: " + StringUtils.join(held, ", "));
 
-        boolean haveAll = false;
-        while (!haveAll) {
-            haveAll = true;
-            List<NamedReentrantLock> locked = new ArrayList<NamedReentrantLock>();
+        final long acquired = System.currentTimeMillis();
+        final LockAction action = new LockAction();
+        final List<LockAction.LockRecord> records = new ArrayList<LockAction.LockRecord>();
+        for (LockHandle lock : held) {
+            lock.getLock().getStatistics().recordWait(acquired - started);
+            LockAction.LockRecord record = new LockAction.LockRecord(lock.getLock().getName(), lock.isShared(), acquired - started);
+            action.add(record);
+            records.add(record);
+        }
+        abstractBuild.addAction(action);
 
-            DESCRIPTOR.lockingLock.lock();
-            try {
-                for (NamedReentrantLock lock : backups) {
-                    buildListener.getLogger().print("[locks-and-latches] Trying to get " + lock.getName() + "... ");
-                    if (lock.tryLock()) {
-                        buildListener.getLogger().println(" Success");
-                        locked.add(lock);
-                    } else {
-                        buildListener.getLogger().println(" Failed, releasing all locks");
-                        haveAll = false;
-                        break;
-                    }
+        return new Environment() {
+            @Override
+            public boolean tearDown(AbstractBuild abstractBuild, BuildListener buildListener) throws IOException, InterruptedException {
+                buildListener.getLogger().println("[locks-and-latches] Releasing all the locks");
+                long heldFor = System.currentTimeMillis() - acquired;
+                for (LockHandle lock : held) {
+                    lock.getLock().getStatistics().recordHold(heldFor);
                 }
-                if (!haveAll) {
-                    // release them all
-                    for (ReentrantLock lock : locked) {
-                        lock.unlock();
-                    }
+                for (LockAction.LockRecord record : records) {
+                    record.setHoldMillis(heldFor);
                 }
-            } finally {
-                DESCRIPTOR.lockingLock.unlock();
+                backend.unlockAll(held, abstractBuild);
+                DESCRIPTOR.getLockTable().dereference(backups);
+                buildListener.getLogger().println("[locks-and-latches] All the locks released");
+                return super.tearDown(abstractBuild, buildListener);
+            }
+        };
+    }
+
+    /**
+     * Lets a run of a multi-configuration job use the locks of its parent
+     * build, which takes them on behalf of all its runs the first time one
+     * of them asks, and keeps them until it completes.
+     */
+    private Environment setUpMatrixRun(final MatrixRun run, final BuildListener buildListener) throws IOException, InterruptedException {
+        final long started = System.currentTimeMillis();
+        long maxWait = getMaxWait();
+        LockTable.Listener listener = new LockTable.Listener() {
+            public void blocked(LockHandle blocker, boolean waiting) {
+                buildListener.getLogger().println("[locks-and-latches] Could not get " + blocker
+                        + (waiting ? ", waiting for a lock to be released..." : ", giving up"));
             }
-            
-            if (!haveAll) {
-                buildListener.getLogger().println("[locks-and-latches] Could not get all the locks, sleeping for 1 minute...");
-                TimeUnit.SECONDS.sleep(60);
+        };
+        MatrixBuild parent = run.getParentBuild();
+        List<LockHandle> held = DESCRIPTOR.getMatrixLocks().inherit(getPlan(), DESCRIPTOR.getBackend(), parent,
+                getPriority(run), maxWait, listener);
+        if (held == null) {
+            return giveUp(run, buildListener);
+        }
+        buildListener.getLogger().println("[locks-and-latches] Using the locks of " + parent + ": " + StringUtils.join(held, ", "));
+
+        final List<LockHandle> serial;
+        if (MATRIX_SERIAL.equals(getMatrixMode())) {
+            // one run at a time, queued on a lock of their own
+            serial = DESCRIPTOR.getMatrixLocks().lockSerial(parent.getProject().getFullName() + " #" + parent.getNumber(),
+                    run, getPriority(run), maxWait, listener);
+            if (serial == null) {
+                return giveUp(run, buildListener);
             }
+        } else {
+            serial = null;
         }
 
-        buildListener.getLogger().println("[locks-and-latches] Have all the locks, build can start");
+        long waited = System.currentTimeMillis() - started;
+        LockAction action = new LockAction();
+        for (LockHandle lock : held) {
+            action.add(new LockAction.LockRecord(lock.getLock().getName(), lock.isShared(), waited));
+        }
+        run.addAction(action);
 
         return new Environment() {
             @Override
             public boolean tearDown(AbstractBuild abstractBuild, BuildListener buildListener) throws IOException, InterruptedException {
-                buildListener.getLogger().println("[locks-and-latches] Releasing all the locks");
-                for (ReentrantLock lock : backups) {
-                    lock.unlock();
+                if (serial != null) {
+                    DESCRIPTOR.getMatrixLocks().unlockSerial(serial, run);
                 }
-                buildListener.getLogger().println("[locks-and-latches] All the locks released");
                 return super.tearDown(abstractBuild, buildListener);
             }
         };
     }
 
+    /**
+     * Returns how many milliseconds to wait for the locks, or -1 to wait forever.
+     */
+    long getMaxWait() {
+        return failFast ? 0 : timeout > 0 ? TimeUnit.SECONDS.toMillis(timeout * 60L) : -1;
+    }
+
+    /**
+     * Applies {@link #getTimeoutResult()} to a build that could not get its locks.
+     */
+    private Environment giveUp(AbstractBuild build, BuildListener listener) {
+        Result result = Result.fromString(getTimeoutResult());
+        if (result == Result.UNSTABLE) {
+            listener.getLogger().println("[locks-and-latches] WARNING: Running the build WITHOUT the locks, nothing protects "
+                    + getPlan().getNames() + " from other builds");
+            // LOCKS must not list locks the build does not hold
+            LockAction action = new LockAction();
+            action.setMissing(getPlan().getNames());
+            build.addAction(action);
+            build.setResult(Result.UNSTABLE);
+            return new Environment() {
+            };
+        }
+        build.setResult(result);
+        return null;
+    }
+
     public void makeBuildVariables(AbstractBuild build, Map<String,String> variables) {
         final StringBuilder names = new StringBuilder();
-        for (LockWaitConfig lock : locks) {
-            if (names.length() > 0) {
-                names.append(',');
+        LockAction action = (LockAction) build.getAction(LockAction.class);
+        if (action != null) {
+            // the locks actually granted, including the members chosen from pools
+            for (LockAction.LockRecord lock : action.getLocks()) {
+                if (names.length() > 0) {
+                    names.append(',');
+                }
+                names.append(lock.getName());
             }
-            names.append(lock.getName());
+        } else {
+            names.append(getPlan().getNames());
         }
         variables.put("LOCKS", names.toString());
+        if (action != null && action.getMissing() != null) {
+            variables.put("LOCKS_MISSING", action.getMissing());
+        }
     }
 
     public String getDisplayName() {
@@ -187,60 +433,293 @@ public class LockWrapper extends BuildWrapper implements ResourceActivity {
     }
 
     public static final class DescriptorImpl extends Descriptor<BuildWrapper> {
+        /**
+         * Beyond this many locks, the global configuration page no longer
+         * shows them, they are managed from the lock status page instead.
+         */
+        public static final int INLINE_LIMIT = 200;
+
+        /**
+         * The most names suggested at once in the job configuration.
+         */
+        static final int MAX_SUGGESTIONS = 20;
+
+        /**
+         * The order in which the locks are kept.
+         */
+        static final Comparator<LockConfig> BY_NAME = new Comparator<LockConfig>() {
+            public int compare(LockConfig lock1, LockConfig lock2) {
+                return lock1.getName().compareToIgnoreCase(lock2.getName());
+            }
+        };
+
         private List<LockConfig> locks;
 
         /**
-         * Required to work around HUDSON-2450.
+         * The directory where the locks are shared with other Hudson
+         * instances, if any.
+         */
+        private String lockDirectory;
+
+        private transient volatile LockBackend backend = new MemoryLockBackend();
+
+        private transient LockTable lockTable = new LockTable();
+
+        /**
+         * {@link #locks} indexed by name, rebuilt whenever the configuration changes.
+         */
+        private transient volatile Map<String, LockConfig> lockIndex = Collections.emptyMap();
+
+        /**
+         * The names of the locks in each pool, rebuilt whenever the configuration changes.
+         */
+        private transient volatile Map<String, List<String>> poolIndex = Collections.emptyMap();
+
+        /**
+         * Bumped whenever {@link #lockIndex} and {@link #poolIndex} are
+         * rebuilt, so that the jobs work out their {@link LockPlan}s again.
+         */
+        private transient volatile int configVersion;
+
+        /**
+         * The locks taken by multi-configuration builds for their runs.
          */
-        private transient ConcurrentMap<String, NamedReentrantLock> backupLocks =
-                new ConcurrentHashMap<String, NamedReentrantLock>();
+        private transient final MatrixLocks matrixLocks = new MatrixLocks(lockTable);
 
         /**
-         * Used to guarantee exclusivity when a build tries to get all its locks.
+         * The locks taken by processes outside Hudson.
          */
-        private transient ReentrantLock lockingLock = new ReentrantLock();
+        private transient LockLeases leases = new LockLeases();
+
+        /**
+         * Keeps the held locks over restarts.
+         */
+        private transient LockJournal journal;
 
         DescriptorImpl() {
             super(LockWrapper.class);
             load();
+            updateLockTable();
+            updateBackend();
+            openJournal();
+            lockTable.setHoldListener(new LockQueueTaskDispatcher.MaintenanceScheduler(journal));
+        }
+
+        private void openJournal() {
+            journal = new LockJournal(new File(Hudson.getInstance().getRootDir(), "locks-and-latches.journal"), lockTable);
+            try {
+                int restored = journal.replay();
+                if (restored > 0) {
+                    LOGGER.info("Restored " + restored + " locks held before the restart");
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to read the lock journal " + journal.getFile(), e);
+            }
+            journal.start();
         }
 
         public String getDisplayName() {
             return "Locks";
         }
 
+        public LockTable getLockTable() {
+            return lockTable;
+        }
+
+        public LockLeases getLeases() {
+            return leases;
+        }
+
+        /**
+         * Returns where builds starting now take their locks.
+         */
+        public LockBackend getBackend() {
+            return backend;
+        }
+
+        public String getLockDirectory() {
+            return lockDirectory;
+        }
+
+        public void setLockDirectory(String lockDirectory) {
+            this.lockDirectory = lockDirectory;
+        }
+
+        /**
+         * Switches to the backend matching {@link #lockDirectory}. Builds
+         * already holding locks give them back to the backend they got them from.
+         */
+        private void updateBackend() {
+            String directory = StringUtils.trimToNull(lockDirectory);
+            LockBackend current = backend;
+            if (directory == null) {
+                if (!(current instanceof MemoryLockBackend)) {
+                    backend = new MemoryLockBackend();
+                }
+            } else if (!(current instanceof SharedFileLockBackend)
+                    || !((SharedFileLockBackend) current).getDirectory().equals(new File(directory))) {
+                backend = new SharedFileLockBackend(new File(directory));
+            }
+        }
+
 
         @Override
         public BuildWrapper newInstance(StaplerRequest req, JSONObject formData) throws FormException {
-            List<LockWaitConfig> locks = req.bindParametersToList(LockWaitConfig.class, "locks.locks.");
-            return new LockWrapper(locks);
+            List<LockWaitConfig> locks = new ArrayList<LockWaitConfig>();
+            // an entry left blank would otherwise make every such job wait for one anonymous lock
+            for (LockWaitConfig lock : req.bindParametersToList(LockWaitConfig.class, "locks.locks.")) {
+                if (StringUtils.isNotBlank(lock.getName())) {
+                    locks.add(lock);
+                }
+            }
+            LockWrapper wrapper = new LockWrapper(locks);
+            req.bindParameters(wrapper, "lockOptions.");
+            return wrapper;
         }
 
         @Override
         public boolean configure(StaplerRequest req, JSONObject formData) throws FormException {
             req.bindParameters(this, "locks.");
-            locks = req.bindParametersToList(LockConfig.class, "locks.lock.");
+            String definitions = req.getParameter("locks.definitions");
+            // with too many locks to edit them on this page, they are managed from the lock status page
+            if (definitions != null) {
+                try {
+                    setLocks(parseDefinitions(definitions));
+                } catch (IllegalArgumentException e) {
+                    throw new FormException(e.getMessage(), "locks.definitions");
+                }
+            }
             save();
             return super.configure(req, formData);
         }
 
         @Override
         public synchronized void save() {
-            // let's remove blank locks
-            CollectionUtils.filter(getLocks(), new Predicate() {
-                public boolean evaluate(Object object) {
-                    return StringUtils.isNotBlank(((LockConfig) object).getName());
+            // the locks are kept sorted as they change, so there is nothing to tidy up here
+            updateLockTable();
+            updateBackend();
+            super.save();
+        }
+
+        /**
+         * Whether the locks are few enough to be edited on the global
+         * configuration page.
+         */
+        public boolean isEditableInline() {
+            return getLocks().size() <= INLINE_LIMIT;
+        }
+
+        /**
+         * Returns the configured locks in the bulk format read by
+         * {@link #importDefinitions(String, boolean)}, one per line.
+         */
+        public String getDefinitions() {
+            StringBuilder definitions = new StringBuilder();
+            for (LockConfig lock : getLocks()) {
+                definitions.append(lock.toDefinition()).append('\n');
+            }
+            return definitions.toString();
+        }
+
+        /**
+         * Reads locks in the bulk format, one per line as described in
+         * {@link LockConfig#parse(String)}. Blank lines and lines starting
+         * with {@code #} are skipped, and a later line for the same lock wins.
+         *
+         * @throws IllegalArgumentException if a line cannot be read.
+         */
+        public static List<LockConfig> parseDefinitions(String definitions) {
+            Map<String, LockConfig> locks = new LinkedHashMap<String, LockConfig>();
+            for (String line : definitions.split("\r?\n")) {
+                line = line.trim();
+                if (line.length() > 0 && !line.startsWith("#")) {
+                    LockConfig lock = LockConfig.parse(line);
+                    locks.put(lock.getName(), lock);
                 }
-            });
-            
-            // now, we can safely sort remaining locks
-            Collections.sort(this.locks, new Comparator<LockConfig>() {
-                public int compare(LockConfig lock1, LockConfig lock2) {
-                    return lock1.getName().compareToIgnoreCase(lock2.getName());
+            }
+            return new ArrayList<LockConfig>(locks.values());
+        }
+
+        /**
+         * Adds locks in the bulk format to the configuration, and saves it.
+         *
+         * @param replace whether the locks read replace all the configured
+         *                ones, rather than only those of the same name.
+         * @return the number of locks read.
+         * @throws IllegalArgumentException if a line cannot be read, in
+         *                                  which case nothing changes.
+         */
+        public synchronized int importDefinitions(String definitions, boolean replace) {
+            List<LockConfig> imported = parseDefinitions(definitions);
+            Map<String, LockConfig> locks = new HashMap<String, LockConfig>();
+            if (!replace) {
+                for (LockConfig lock : getLocks()) {
+                    locks.put(lock.getName(), lock);
                 }
-            });
-            
-            super.save();
+            }
+            for (LockConfig lock : imported) {
+                locks.put(lock.getName(), lock);
+            }
+            setLocks(new ArrayList<LockConfig>(locks.values()));
+            save();
+            return imported.size();
+        }
+
+        /**
+         * Suggests the configured locks and pools starting with what has been
+         * typed so far, so that the job configuration page need not list them all.
+         */
+        public AutoCompletionCandidates doAutoCompleteName(@QueryParameter String value) {
+            AutoCompletionCandidates candidates = new AutoCompletionCandidates();
+            String prefix = StringUtils.defaultString(value).toLowerCase();
+            int count = 0;
+            for (LockConfig lock : getLocks()) {
+                if (count == MAX_SUGGESTIONS) {
+                    return candidates;
+                }
+                if (lock.getName().toLowerCase().startsWith(prefix)) {
+                    candidates.add(lock.getName());
+                    count++;
+                }
+            }
+            for (String pool : poolIndex.keySet()) {
+                if (count == MAX_SUGGESTIONS) {
+                    break;
+                }
+                if (pool.toLowerCase().startsWith(prefix)) {
+                    candidates.add(pool);
+                    count++;
+                }
+            }
+            return candidates;
+        }
+
+        /**
+         * Rebuilds {@link #lockIndex} and hands the configured locks to the
+         * lock table, which applies their settings to the locks it already has
+         * and to the others as builds start using them. Locks that are no
+         * longer configured are dropped from the table once no build uses them.
+         */
+        private synchronized void updateLockTable() {
+            Map<String, LockConfig> index = new HashMap<String, LockConfig>();
+            for (LockConfig lock : getLocks()) {
+                index.put(lock.getName(), lock);
+            }
+            Map<String, List<String>> pools = new HashMap<String, List<String>>();
+            for (LockConfig lock : index.values()) {
+                if (StringUtils.isNotBlank(lock.getPool()) && !index.containsKey(lock.getPool())) {
+                    List<String> members = pools.get(lock.getPool());
+                    if (members == null) {
+                        members = new ArrayList<String>();
+                        pools.put(lock.getPool(), members);
+                    }
+                    members.add(lock.getName());
+                }
+            }
+            lockIndex = index;
+            poolIndex = pools;
+            configVersion++;
+            lockTable.setConfiguredLocks(index);
         }
 
         public List<LockConfig> getLocks() {
@@ -252,61 +731,493 @@ public class LockWrapper extends BuildWrapper implements ResourceActivity {
             return locks;
         }
 
+        /**
+         * Replaces the configured locks, leaving out those without a name.
+         */
         public void setLocks(List<LockConfig> locks) {
-            this.locks = locks;
-        }
-
-        public LockConfig getLock(String name) {
-            for (LockConfig host : locks) {
-                if (name.equals(host.getName())) {
-                    return host;
+            List<LockConfig> named = new ArrayList<LockConfig>(locks.size());
+            for (LockConfig lock : locks) {
+                if (StringUtils.isNotBlank(lock.getName())) {
+                    named.add(lock);
                 }
             }
-            return null;
+            Collections.sort(named, BY_NAME);
+            this.locks = named;
+            updateLockTable();
         }
 
-        public String[] getLockNames() {
-            getLocks();
-            String[] result = new String[locks.size()];
-            for (int i = 0; i < result.length; i++) {
-                result[i] = locks.get(i).getName();
-            }
-            return result;
+        public LockConfig getLock(String name) {
+            return lockIndex.get(name);
         }
 
-        public void addLock(LockConfig hostConfig) {
-            locks.add(hostConfig);
-            save();
+        public MatrixLocks getMatrixLocks() {
+            return matrixLocks;
         }
 
         /**
-         * There wass a bug in the ResourceList.isCollidingWith,
-         * this method used to determine the hack workaround if the bug is not fixed, but now only needs to
-         * return 1.
+         * Asks for the given locks without blocking the calling thread, for
+         * callers such as a pipeline step that can resume later. They share
+         * the locks with the builds using {@link LockWrapper}.
+         *
+         * @param owner   who the locks are taken for.
+         * @param maxWait the maximum number of milliseconds to wait, 0 to make a
+         *                single attempt or a negative number to wait forever.
+         * @return the started request, to be released once done with the locks.
+         * @throws IllegalStateException if the {@link #getBackend() backend}
+         *         shares the locks with other Hudson instances, as nothing tells
+         *         a request without a thread when they give them back.
          */
-        synchronized int getWriteLockCount() {
-            return 1;
+        public LockRequest requestLocks(List<LockWaitConfig> locks, Object owner, int priority, long maxWait,
+                                        LockRequest.Callback callback) {
+            if (!(getBackend() instanceof MemoryLockBackend)) {
+                throw new IllegalStateException("Locks cannot be requested without waiting while they are shared with "
+                        + "other Hudson instances through " + lockDirectory);
+            }
+            final List<LockHandle> handles = new LockWrapper(locks).referenceLocks();
+            return new LockRequest(handles, owner, priority, maxWait, callback, new Runnable() {
+                public void run() {
+                    lockTable.dereference(handles);
+                }
+            }).start();
         }
-    }
 
-    public static final class LockConfig implements Serializable {
-        private String name;
-        private transient AbstractBuild owner = null;
+        /**
+         * Forcibly releases the named lock from all its holders, for instance
+         * when the build holding it has been lost. Only POST is accepted.
+         */
+        public void doRelease(StaplerRequest req, StaplerResponse rsp, @QueryParameter String name) throws IOException {
+            Hudson.getInstance().checkPermission(Hudson.ADMINISTER);
+            if (!"POST".equals(req.getMethod())) {
+                rsp.sendError(StaplerResponse.SC_METHOD_NOT_ALLOWED, "POST required");
+                return;
+            }
+            NamedReentrantLock lock = lockTable.peekLock(name);
+            if (lock == null) {
+                rsp.sendError(StaplerResponse.SC_NOT_FOUND, "No such lock: " + name);
+                return;
+            }
+            for (Object owner : lock.getHolders().keySet()) {
+                LOGGER.info("Releasing lock " + name + " held by " + owner + " on request");
+                backend.release(lock, owner);
+            }
+            rsp.setStatus(StaplerResponse.SC_OK);
+        }
 
-        public LockConfig() {
+        /**
+         * Serves the state and contention statistics of every lock as JSON.
+         */
+        public void doStatistics(StaplerRequest req, StaplerResponse rsp) throws IOException {
+            Hudson.getInstance().checkPermission(Hudson.READ);
+            JSONArray result = new JSONArray();
+            for (NamedReentrantLock lock : lockTable.getLocks()) {
+                result.add(lock.toJSON());
+            }
+            rsp.setContentType("application/json;charset=UTF-8");
+            rsp.getWriter().print(result.toString());
         }
 
-        @DataBoundConstructor
-        public LockConfig(String name) {
-            this.name = name;
+        /**
+         * Returns the state of every lock, sorted by name, without holding up
+         * any build.
+         */
+        public List<LockSnapshot> getSnapshots() {
+            List<LockSnapshot> snapshots = new ArrayList<LockSnapshot>();
+            for (NamedReentrantLock lock : lockTable.getLocks()) {
+                snapshots.add(lock.getSnapshot());
+            }
+            Collections.sort(snapshots, new Comparator<LockSnapshot>() {
+                public int compare(LockSnapshot lock1, LockSnapshot lock2) {
+                    return lock1.getName().compareTo(lock2.getName());
+                }
+            });
+            return snapshots;
         }
 
-        public String getName() {
-            return name;
+        /**
+         * Serves the holders and waiters of every lock as JSON.
+         */
+        public void doSnapshot(StaplerRequest req, StaplerResponse rsp) throws IOException {
+            Hudson.getInstance().checkPermission(Hudson.READ);
+            long now = System.currentTimeMillis();
+            JSONArray locks = new JSONArray();
+            for (LockSnapshot lock : getSnapshots()) {
+                locks.add(lock.toJSON(now));
+            }
+            rsp.setContentType("application/json;charset=UTF-8");
+            rsp.getWriter().print(new JSONObject().element("time", now).element("locks", locks).toString());
         }
 
-        public void setName(String name) {
+        /**
+         * Takes the configured locks or pools for a process outside Hudson,
+         * if they are free right now.
+         *
+         * @param ttl how many milliseconds the lease lasts unless renewed.
+         * @return the lease, or {@code null} if one of the locks is busy.
+         * @throws IllegalArgumentException if one of the names is neither a lock nor a pool.
+         */
+        public LockLeases.Lease acquireLease(List<String> names, boolean shared, String client, long ttl)
+                throws IOException, InterruptedException {
+            if (names.isEmpty()) {
+                throw new IllegalArgumentException("No lock given");
+            }
+            List<LockWaitConfig> locks = new ArrayList<LockWaitConfig>();
+            for (String name : names) {
+                name = name.trim();
+                if (getLock(name) == null && !isPool(name)) {
+                    throw new IllegalArgumentException("No such lock: " + name);
+                }
+                locks.add(new LockWaitConfig(name, shared, 1));
+            }
+            final List<LockHandle> handles = new LockWrapper(locks).referenceLocks();
+            return leases.tryAcquire(getBackend(), handles, client, ttl, new Runnable() {
+                public void run() {
+                    lockTable.dereference(handles);
+                }
+            });
+        }
+
+        /**
+         * Takes the comma separated locks for a process outside Hudson, if
+         * they are free right now, and answers with the lease token, or with
+         * {@code 409 Conflict} if one of them is busy. Only POST is accepted.
+         *
+         * @param ttl how many seconds the lease lasts unless renewed, five minutes by default.
+         */
+        public void doAcquire(StaplerRequest req, StaplerResponse rsp, @QueryParameter String names,
+                              @QueryParameter boolean shared, @QueryParameter int ttl) throws IOException, InterruptedException {
+            Hudson.getInstance().checkPermission(Hudson.ADMINISTER);
+            if (!"POST".equals(req.getMethod())) {
+                rsp.sendError(StaplerResponse.SC_METHOD_NOT_ALLOWED, "POST required");
+                return;
+            }
+            LockLeases.Lease lease;
+            try {
+                lease = acquireLease(Arrays.asList(StringUtils.split(StringUtils.defaultString(names), ',')), shared,
+                        req.getRemoteAddr(), TimeUnit.SECONDS.toMillis(ttl > 0 ? ttl : DEFAULT_LEASE_SECONDS));
+            } catch (IllegalArgumentException e) {
+                rsp.sendError(StaplerResponse.SC_NOT_FOUND, e.getMessage());
+                return;
+            }
+            if (lease == null) {
+                rsp.sendError(StaplerResponse.SC_CONFLICT, "Locks busy: " + names);
+                return;
+            }
+            JSONArray held = new JSONArray();
+            for (LockHandle lock : lease.getHeld()) {
+                held.add(lock.getLock().getName());
+            }
+            rsp.setContentType("application/json;charset=UTF-8");
+            rsp.getWriter().print(new JSONObject().element("token", lease.getToken())
+                    .element("locks", held).element("expires", lease.getExpires()).toString());
+        }
+
+        /**
+         * Extends the lease with the given token by its time to live. Only
+         * POST is accepted.
+         */
+        public void doRenew(StaplerRequest req, StaplerResponse rsp, @QueryParameter String token) throws IOException {
+            Hudson.getInstance().checkPermission(Hudson.ADMINISTER);
+            if (!"POST".equals(req.getMethod())) {
+                rsp.sendError(StaplerResponse.SC_METHOD_NOT_ALLOWED, "POST required");
+                return;
+            }
+            if (!leases.renew(token)) {
+                rsp.sendError(StaplerResponse.SC_NOT_FOUND, "No such lease");
+                return;
+            }
+            rsp.setStatus(StaplerResponse.SC_OK);
+        }
+
+        /**
+         * Releases the locks of the lease with the given token. Only POST is
+         * accepted.
+         */
+        public void doReleaseLease(StaplerRequest req, StaplerResponse rsp, @QueryParameter String token) throws IOException {
+            Hudson.getInstance().checkPermission(Hudson.ADMINISTER);
+            if (!"POST".equals(req.getMethod())) {
+                rsp.sendError(StaplerResponse.SC_METHOD_NOT_ALLOWED, "POST required");
+                return;
+            }
+            if (!leases.release(token)) {
+                rsp.sendError(StaplerResponse.SC_NOT_FOUND, "No such lease");
+                return;
+            }
+            rsp.setStatus(StaplerResponse.SC_OK);
+        }
+
+        public String[] getLockNames() {
+            getLocks();
+            Map<String, List<String>> pools = poolIndex;
+            String[] result = new String[locks.size() + pools.size()];
+            for (int i = 0; i < locks.size(); i++) {
+                result[i] = locks.get(i).getName();
+            }
+            String[] poolNames = pools.keySet().toArray(new String[pools.size()]);
+            Arrays.sort(poolNames, String.CASE_INSENSITIVE_ORDER);
+            System.arraycopy(poolNames, 0, result, locks.size(), poolNames.length);
+            return result;
+        }
+
+        /**
+         * Tells whether the name is that of a pool rather than of a lock.
+         */
+        public boolean isPool(String name) {
+            return poolIndex.containsKey(name);
+        }
+
+        /**
+         * Returns the names of the locks in the pool, or an empty list.
+         */
+        public List<String> getPoolMembers(String pool) {
+            List<String> members = poolIndex.get(pool);
+            return members == null ? Collections.<String>emptyList() : members;
+        }
+
+        /**
+         * Returns the version of the configuration, which changes whenever
+         * it is saved or loaded.
+         */
+        int getConfigVersion() {
+            return configVersion;
+        }
+
+        /**
+         * Works out what the lock entries of a job ask for under the current
+         * configuration.
+         */
+        LockPlan newPlan(List<LockWaitConfig> locks) {
+            // read the version first, so that a plan racing with a change is redone
+            int version = configVersion;
+            return new LockPlan(locks, poolIndex, lockIndex, version);
+        }
+
+        public synchronized void addLock(LockConfig hostConfig) {
+            List<LockConfig> locks = getLocks();
+            int index = Collections.binarySearch(locks, hostConfig, BY_NAME);
+            locks.add(index < 0 ? -index - 1 : index, hostConfig);
+            save();
+        }
+    }
+
+    public static final class LockConfig implements Serializable {
+        private String name;
+        private int capacity = 1;
+        private String pool;
+
+        /**
+         * The number of builds that can get this lock per minute, 0 for no limit.
+         */
+        private int rate;
+
+        /**
+         * The number of builds that can get this lock at once when it has not
+         * been used for a while.
+         */
+        private int burst;
+        private transient AbstractBuild owner = null;
+
+        public LockConfig() {
+        }
+
+        public LockConfig(String name) {
+            this(name, 1, null);
+        }
+
+        public LockConfig(String name, int capacity, String pool) {
+            this(name, capacity, pool, 0, 0);
+        }
+
+        @DataBoundConstructor
+        public LockConfig(String name, int capacity, String pool, int rate, int burst) {
             this.name = name;
+            this.capacity = capacity;
+            this.pool = StringUtils.isBlank(pool) ? null : pool.trim();
+            this.rate = rate;
+            this.burst = burst;
+        }
+
+        /**
+         * Reads a lock from a line of the bulk format: its name followed by
+         * any of {@code capacity=}, {@code pool=}, {@code rate=} and
+         * {@code burst=}, separated by spaces. For instance
+         * {@code deploy-prod capacity=2 pool=deploy}. A name or pool with
+         * spaces is written between double quotes, with any {@code "} or
+         * {@code \} in it preceded by a {@code \}, as in
+         * {@code "deploy prod" pool="deploy servers"}.
+         *
+         * @throws IllegalArgumentException if the line cannot be read.
+         */
+        public static LockConfig parse(String line) {
+            List<String[]> tokens = tokenize(line);
+            if (tokens.isEmpty()) {
+                throw new IllegalArgumentException("No lock in: " + line);
+            }
+            String[] first = tokens.get(0);
+            String name = first[0] == null ? first[1] : first[0] + '=' + first[1];
+            if (name.length() == 0) {
+                throw new IllegalArgumentException("No lock name in: " + line);
+            }
+            int capacity = 1;
+            String pool = null;
+            int rate = 0;
+            int burst = 0;
+            for (String[] token : tokens.subList(1, tokens.size())) {
+                String key = token[0];
+                String value = token[1];
+                if (key == null) {
+                    throw new IllegalArgumentException("Unexpected " + value + " after the name in: " + line
+                            + " (quote names containing spaces)");
+                }
+                try {
+                    if ("capacity".equals(key)) {
+                        capacity = Integer.parseInt(value);
+                    } else if ("pool".equals(key)) {
+                        pool = value;
+                    } else if ("rate".equals(key)) {
+                        rate = Integer.parseInt(value);
+                    } else if ("burst".equals(key)) {
+                        burst = Integer.parseInt(value);
+                    } else {
+                        throw new IllegalArgumentException("Unknown setting " + key + " in: " + line);
+                    }
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Not a number: " + key + '=' + value + " in: " + line);
+                }
+            }
+            if (capacity < 1) {
+                throw new IllegalArgumentException("The capacity must be at least 1 in: " + line);
+            }
+            return new LockConfig(name, capacity, pool, rate, burst);
+        }
+
+        /**
+         * Splits a line of the bulk format at the spaces that are not quoted.
+         *
+         * @return each token as the setting it is for, {@code null} if it is
+         *         not a setting, followed by its value.
+         */
+        private static List<String[]> tokenize(String line) {
+            List<String[]> tokens = new ArrayList<String[]>();
+            StringBuilder token = null;
+            String key = null;
+            boolean quoted = false;
+            for (int i = 0; i < line.length(); i++) {
+                char c = line.charAt(i);
+                if (quoted) {
+                    if (c == '\\' && i + 1 < line.length()) {
+                        token.append(line.charAt(++i));
+                    } else if (c == '"') {
+                        quoted = false;
+                    } else {
+                        token.append(c);
+                    }
+                } else if (Character.isWhitespace(c)) {
+                    if (token != null) {
+                        tokens.add(new String[]{key, token.toString()});
+                        token = null;
+                        key = null;
+                    }
+                } else {
+                    if (token == null) {
+                        token = new StringBuilder();
+                    }
+                    if (c == '"') {
+                        quoted = true;
+                    } else if (c == '=' && key == null) {
+                        key = token.toString();
+                        token.setLength(0);
+                    } else {
+                        token.append(c);
+                    }
+                }
+            }
+            if (quoted) {
+                throw new IllegalArgumentException("Missing closing quote in: " + line);
+            }
+            if (token != null) {
+                tokens.add(new String[]{key, token.toString()});
+            }
+            return tokens;
+        }
+
+        /**
+         * Returns the lock as a line of the bulk format read by {@link #parse(String)}.
+         */
+        public String toDefinition() {
+            StringBuilder line = new StringBuilder(quote(name));
+            if (getCapacity() != 1) {
+                line.append(" capacity=").append(getCapacity());
+            }
+            if (pool != null) {
+                line.append(" pool=").append(quote(pool));
+            }
+            if (getRate() > 0) {
+                line.append(" rate=").append(getRate()).append(" burst=").append(getBurst());
+            }
+            return line.toString();
+        }
+
+        /**
+         * Quotes the value for the bulk format, unless it reads back the same without.
+         */
+        private static String quote(String value) {
+            boolean plain = value.length() > 0 && !value.startsWith("#");
+            for (int i = 0; plain && i < value.length(); i++) {
+                char c = value.charAt(i);
+                plain = !Character.isWhitespace(c) && c != '"' && c != '\\' && c != '=';
+            }
+            if (plain) {
+                return value;
+            }
+            return '"' + value.replace("\\", "\\\\").replace("\"", "\\\"") + '"';
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public void setName(String name) {
+            this.name = name;
+        }
+
+        /**
+         * The number of builds that can hold this lock at the same time.
+         */
+        public int getCapacity() {
+            // configurations saved before capacities were introduced have 0 here
+            return Math.max(1, capacity);
+        }
+
+        public void setCapacity(int capacity) {
+            this.capacity = capacity;
+        }
+
+        /**
+         * The pool this lock belongs to, if any. Jobs asking for the pool get
+         * whichever of its locks are free.
+         */
+        public String getPool() {
+            return pool;
+        }
+
+        public void setPool(String pool) {
+            this.pool = pool;
+        }
+
+        public int getRate() {
+            return Math.max(0, rate);
+        }
+
+        public void setRate(int rate) {
+            this.rate = rate;
+        }
+
+        public int getBurst() {
+            return Math.max(1, burst);
+        }
+
+        public void setBurst(int burst) {
+            this.burst = burst;
         }
 
         @Override
@@ -331,14 +1242,47 @@ public class LockWrapper extends BuildWrapper implements ResourceActivity {
 
     public static final class LockWaitConfig implements Serializable {
         private String name;
+        private boolean shared;
+        private int count = 1;
         private transient LockConfig lock;
 
         public LockWaitConfig() {
         }
 
-        @DataBoundConstructor
         public LockWaitConfig(String name) {
-            this.name = name;
+            this(name, false, 1);
+        }
+
+        @DataBoundConstructor
+        public LockWaitConfig(String name, boolean shared, int count) {
+            this.name = StringUtils.trim(name);
+            this.shared = shared;
+            this.count = count;
+        }
+
+        /**
+         * How many locks to take when {@link #getName()} is a pool.
+         */
+        public int getCount() {
+            // configurations saved before pools were introduced have 0 here
+            return Math.max(1, count);
+        }
+
+        public void setCount(int count) {
+            this.count = count;
+        }
+
+        /**
+         * Whether the build only needs shared (read) access to the lock. Any
+         * number of shared holders can run together, but not alongside an
+         * exclusive holder.
+         */
+        public boolean isShared() {
+            return shared;
+        }
+
+        public void setShared(boolean shared) {
+            this.shared = shared;
         }
 
         public LockConfig getLock() {
@@ -363,17 +1307,534 @@ public class LockWrapper extends BuildWrapper implements ResourceActivity {
             setLock(DESCRIPTOR.getLock(this.name = name));
         }
 
+        /**
+         * Whether the name uses build variables, which pick the actual lock
+         * when the build starts. Such locks need not be configured: they are
+         * created when a build first asks for them, and dropped again once
+         * no build uses them.
+         */
+        public boolean isParameterised() {
+            return name != null && name.indexOf('$') >= 0;
+        }
+
+        /**
+         * Returns this entry with the build variables in its name replaced by
+         * their values, or this entry itself if it uses none. A variable that
+         * is not set is left as it is, so the builds without it share a lock.
+         */
+        public LockWaitConfig resolve(Map<String, String> variables) {
+            return isParameterised() ? new LockWaitConfig(Util.replaceMacro(getName(), variables), shared, count) : this;
+        }
+
     }
 
     /**
-     * Extends {@code ReentrantLock} to add a {@link #name} attribute (mainly
-     * for display purposes).
+     * A lock with a {@link #name} (mainly for display purposes) that can be
+     * held exclusively by up to {@link #getCapacity()} builds at the same time,
+     * or shared by any number of builds, and a queue of builds waiting for it
+     * to be released.
+     * <p>
+     * The lock is owned by an object, normally the build, rather than by a
+     * thread, so it can be released from anywhere. An owner that already holds
+     * the lock can take it again.
+     * <p>
+     * Exclusive holders are preferred: once a build fails to get the lock
+     * exclusively, no new shared holder is admitted until it has had its turn.
      */
-    public static final class NamedReentrantLock extends ReentrantLock {
+    public static final class NamedReentrantLock {
         private String name;
+        private int capacity = 1;
+        private int holdCount;
+        private int sharedCount;
+        private int references;
+        private boolean retired;
+        private volatile long lastReleased;
+        private final Queue<LockWaiter> waiters = new ConcurrentLinkedQueue<LockWaiter>();
+        private final Map<Object, Hold> holds = new LinkedHashMap<Object, Hold>();
+        private final LockStatistics statistics = new LockStatistics();
+        /**
+         * The builds that could not get the lock, mapped to whether they want
+         * it shared. The lock is kept for the highest priority ones.
+         */
+        private final Map<LockWaiter, Boolean> pending = new HashMap<LockWaiter, Boolean>();
+        private volatile LockTable.HoldListener holdListener;
+
+        /**
+         * The token bucket limiting how many builds get the lock per minute:
+         * each build getting it takes a token, and {@link #rate} tokens are
+         * added back every minute up to {@link #burst}. No limit if the rate is 0.
+         */
+        private int rate;
+        private int burst = 1;
+        private double tokens;
+        private long refilled;
+        private LockTable.Clock clock = LockTable.Clock.SYSTEM;
+
+        /**
+         * The holders as of the last change, for readers that must not wait.
+         */
+        private volatile LockSnapshot snapshot;
 
         public NamedReentrantLock(String name) {
             this.name = name;
+            publish();
+        }
+
+        /**
+         * Publishes a new {@link #snapshot}, after each change of the holders.
+         */
+        private void publish() {
+            List<LockSnapshot.Holder> holders = new ArrayList<LockSnapshot.Holder>(holds.size());
+            for (Map.Entry<Object, Hold> hold : holds.entrySet()) {
+                holders.add(new LockSnapshot.Holder(hold.getKey(), hold.getValue().shared, hold.getValue().since));
+            }
+            snapshot = new LockSnapshot(name, capacity, holders);
+        }
+
+        /**
+         * Returns the state of the lock without waiting for builds taking or
+         * releasing it.
+         */
+        public LockSnapshot getSnapshot() {
+            return new LockSnapshot(snapshot, getWaiters());
+        }
+
+        void setHoldListener(LockTable.HoldListener holdListener) {
+            this.holdListener = holdListener;
+        }
+
+        synchronized void setClock(LockTable.Clock clock) {
+            this.clock = clock;
+            refilled = clock.now();
+        }
+
+        public void addWaiter(LockWaiter waiter) {
+            waiters.add(waiter);
+        }
+
+        public void removeWaiter(LockWaiter waiter) {
+            waiters.remove(waiter);
+            boolean wasPending;
+            synchronized (this) {
+                wasPending = pending.remove(waiter) != null;
+            }
+            if (wasPending) {
+                // other requests may have been held back for this waiter
+                signalWaiters(waiter);
+            }
+        }
+
+        public int getWaiterCount() {
+            return waiters.size();
+        }
+
+        /**
+         * Returns the builds waiting for this lock, possibly among others.
+         */
+        public List<LockWaiter> getWaiters() {
+            return new ArrayList<LockWaiter>(waiters);
+        }
+
+        public LockStatistics getStatistics() {
+            return statistics;
+        }
+
+        /**
+         * Returns the owners holding the lock, mapped to when they got it.
+         */
+        public synchronized Map<Object, Long> getHolders() {
+            Map<Object, Long> holders = new LinkedHashMap<Object, Long>();
+            for (Map.Entry<Object, Hold> hold : holds.entrySet()) {
+                holders.put(hold.getKey(), hold.getValue().since);
+            }
+            return holders;
+        }
+
+        /**
+         * Returns the owners holding the lock, mapped to whether they hold it shared.
+         */
+        public synchronized Map<Object, Boolean> getHolderModes() {
+            Map<Object, Boolean> modes = new LinkedHashMap<Object, Boolean>();
+            for (Map.Entry<Object, Hold> hold : holds.entrySet()) {
+                modes.put(hold.getKey(), hold.getValue().shared);
+            }
+            return modes;
+        }
+
+        /**
+         * Returns the current state of the lock and its statistics.
+         */
+        public JSONObject toJSON() {
+            JSONObject json = new JSONObject();
+            json.element("name", name);
+            synchronized (this) {
+                json.element("capacity", capacity);
+                json.element("holdCount", holdCount);
+                json.element("sharedCount", sharedCount);
+            }
+            json.element("waiters", getWaiterCount());
+            JSONObject holders = new JSONObject();
+            for (Map.Entry<Object, Long> holder : getHolders().entrySet()) {
+                holders.element(String.valueOf(holder.getKey()), holder.getValue());
+            }
+            json.element("holders", holders);
+            json.element("rate", getRate());
+            json.element("tokenDelay", getTokenDelay());
+            json.element("statistics", statistics.toJSON());
+            return json;
+        }
+
+        /**
+         * Tells whether {@link #tryLock(boolean, LockWaiter, Object)} would currently
+         * succeed for a new build, without taking the lock.
+         */
+        public synchronized boolean isAvailable(boolean shared) {
+            if (!hasToken()) {
+                return false;
+            }
+            if (shared) {
+                return holdCount == 0 && !pending.containsValue(Boolean.FALSE);
+            }
+            return sharedCount == 0 && holdCount < capacity;
+        }
+
+        /**
+         * Takes the lock in the given mode if possible.
+         *
+         * @param shared whether shared access is enough.
+         * @param self   the waiter of the calling build, remembered as a pending
+         *               exclusive request if the lock cannot be taken.
+         * @param owner  who the lock is taken for.
+         */
+        public boolean tryLock(boolean shared, LockWaiter self, Object owner) {
+            boolean success = doTryLock(shared, self, owner);
+            statistics.recordAttempt(success);
+            return success;
+        }
+
+        private synchronized boolean doTryLock(boolean shared, LockWaiter self, Object owner) {
+            Hold hold = holds.get(owner);
+            if (hold != null) {
+                // a shared hold cannot be upgraded, that would deadlock with any other shared holder
+                if (hold.shared && !shared) {
+                    return false;
+                }
+                hold.count++;
+                return true;
+            }
+            boolean free = shared ? holdCount == 0 : sharedCount == 0 && holdCount < capacity;
+            if (!free || !hasToken() || isOutranked(shared, self)) {
+                if (self != null) {
+                    pending.put(self, shared);
+                }
+                return false;
+            }
+            if (self != null) {
+                pending.remove(self);
+            }
+            if (shared) {
+                sharedCount++;
+            } else {
+                holdCount++;
+            }
+            if (rate > 0) {
+                tokens--;
+            }
+            holds.put(owner, new Hold(shared, System.currentTimeMillis()));
+            publish();
+            LockTable.HoldListener listener = holdListener;
+            if (listener != null) {
+                listener.held(this, owner, shared);
+            }
+            return true;
+        }
+
+        private boolean hasToken() {
+            assert Thread.holdsLock(this);
+            if (rate <= 0) {
+                return true;
+            }
+            long now = clock.now();
+            tokens = Math.min(burst, tokens + (now - refilled) * rate / 60000.0);
+            refilled = now;
+            return tokens >= 1;
+        }
+
+        /**
+         * Returns how many milliseconds until the lock has a token for the
+         * next build, 0 if it has one now or is not rate limited.
+         */
+        public synchronized long getTokenDelay() {
+            if (hasToken()) {
+                return 0;
+            }
+            return (long) Math.ceil((1 - tokens) * 60000.0 / rate);
+        }
+
+        public synchronized int getRate() {
+            return rate;
+        }
+
+        public synchronized int getBurst() {
+            return burst;
+        }
+
+        /**
+         * Limits how many builds get the lock per minute. The bucket starts full.
+         *
+         * @param rate  the number of builds per minute, 0 for no limit.
+         * @param burst the number of builds that can get it at once after a quiet period.
+         */
+        public void setRate(int rate, int burst) {
+            synchronized (this) {
+                if (rate == this.rate && burst == this.burst) {
+                    return;
+                }
+                this.rate = Math.max(0, rate);
+                this.burst = Math.max(1, burst);
+                tokens = this.burst;
+                refilled = clock.now();
+            }
+            signalWaiters(null);
+        }
+
+        /**
+         * Tells whether the lock is kept for another build that could not get
+         * it: shared requests give way to exclusive ones of the same or higher
+         * priority, so that these are not starved, and exclusive requests give
+         * way to any request of higher priority. Requests without a waiter
+         * only give way to exclusive requests, and only when shared.
+         */
+        private boolean isOutranked(boolean shared, LockWaiter self) {
+            assert Thread.holdsLock(this);
+            if (pending.isEmpty()) {
+                return false;
+            }
+            long now = System.currentTimeMillis();
+            long priority = self == null ? Long.MAX_VALUE : self.getEffectivePriority(now);
+            for (Map.Entry<LockWaiter, Boolean> other : pending.entrySet()) {
+                if (other.getKey() == self) {
+                    continue;
+                }
+                long otherPriority = other.getKey().getEffectivePriority(now);
+                if (shared) {
+                    if (!other.getValue() && (self == null || otherPriority >= priority)) {
+                        return true;
+                    }
+                } else if (otherPriority > priority) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Gives the owner back a hold it had before a restart, whether or not
+         * the lock is free. Nobody is told about it since it is not new.
+         */
+        public synchronized void restore(Object owner, boolean shared) {
+            if (holds.containsKey(owner)) {
+                return;
+            }
+            if (shared) {
+                sharedCount++;
+            } else {
+                holdCount++;
+            }
+            holds.put(owner, new Hold(shared, System.currentTimeMillis()));
+            publish();
+        }
+
+        /**
+         * Hands the hold of one owner over to another, keeping its mode and count.
+         *
+         * @return {@code false} if {@code from} did not hold the lock or
+         *         {@code to} already does.
+         */
+        public synchronized boolean transfer(Object from, Object to) {
+            if (!holds.containsKey(from) || holds.containsKey(to)) {
+                return false;
+            }
+            Hold hold = holds.remove(from);
+            holds.put(to, hold);
+            publish();
+            LockTable.HoldListener listener = holdListener;
+            if (listener != null) {
+                listener.released(this, from);
+                listener.held(this, to, hold.shared);
+            }
+            return true;
+        }
+
+        /**
+         * Releases the lock once for the owner and, when the owner no longer
+         * holds it, wakes every build waiting for it except {@code self}.
+         *
+         * @return {@code false} if the owner did not hold the lock, for
+         *         instance because it was already released by {@link #release(Object)}.
+         */
+        public boolean unlock(Object owner, LockWaiter self) {
+            synchronized (this) {
+                Hold hold = holds.get(owner);
+                if (hold == null) {
+                    return false;
+                }
+                if (--hold.count > 0) {
+                    return true;
+                }
+                remove(owner);
+            }
+            lastReleased = System.currentTimeMillis();
+            signalWaiters(self);
+            return true;
+        }
+
+        /**
+         * Gives back a lock taken during an attempt that failed on another
+         * lock, along with its token if it is rate limited.
+         * <p>
+         * Only the builds that failed to get this lock meanwhile are woken up,
+         * never {@code self}. Waking up everybody would let two builds waiting
+         * for other locks wake each other up forever.
+         *
+         * @return {@code false} if the owner did not hold the lock.
+         */
+        public boolean rollback(Object owner, LockWaiter self) {
+            List<LockWaiter> pendingWaiters;
+            synchronized (this) {
+                Hold hold = holds.get(owner);
+                if (hold == null) {
+                    return false;
+                }
+                if (--hold.count > 0) {
+                    return true;
+                }
+                remove(owner);
+                if (rate > 0) {
+                    tokens = Math.min(burst, tokens + 1);
+                }
+                pendingWaiters = new ArrayList<LockWaiter>(pending.keySet());
+            }
+            for (LockWaiter waiter : pendingWaiters) {
+                if (waiter != self) {
+                    waiter.signal();
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Releases the lock held by the owner, however many times it took it.
+         *
+         * @return {@code false} if the owner did not hold the lock.
+         */
+        public boolean release(Object owner) {
+            synchronized (this) {
+                if (!holds.containsKey(owner)) {
+                    return false;
+                }
+                remove(owner);
+            }
+            lastReleased = System.currentTimeMillis();
+            signalWaiters(null);
+            return true;
+        }
+
+        private void remove(Object owner) {
+            assert Thread.holdsLock(this);
+            if (holds.remove(owner).shared) {
+                sharedCount--;
+            } else {
+                holdCount--;
+            }
+            publish();
+            LockTable.HoldListener listener = holdListener;
+            if (listener != null) {
+                listener.released(this, owner);
+            }
+        }
+
+        private void signalWaiters(LockWaiter self) {
+            for (LockWaiter waiter : waiters) {
+                if (waiter != self) {
+                    waiter.signal();
+                }
+            }
+        }
+
+        public synchronized boolean isLocked() {
+            return holdCount >= capacity || sharedCount > 0;
+        }
+
+        public synchronized int getHoldCount() {
+            return holdCount;
+        }
+
+        public synchronized int getSharedCount() {
+            return sharedCount;
+        }
+
+        /**
+         * Returns when the lock was last released, used to balance the load
+         * over the members of a pool.
+         */
+        public long getLastReleased() {
+            return lastReleased;
+        }
+
+        /**
+         * Records that a build is going to use this lock.
+         *
+         * @return {@code false} if the lock has been dropped from the lock table
+         *         and must be looked up again.
+         */
+        synchronized boolean reference() {
+            if (retired) {
+                return false;
+            }
+            references++;
+            return true;
+        }
+
+        /**
+         * Records that a build no longer uses this lock.
+         *
+         * @return {@code true} if nobody uses it any more.
+         */
+        synchronized boolean dereference() {
+            return --references == 0;
+        }
+
+        /**
+         * Marks this lock as dropped from the lock table, unless a build uses
+         * or holds it.
+         */
+        synchronized boolean retire() {
+            if (references > 0 || holdCount > 0 || sharedCount > 0) {
+                return false;
+            }
+            retired = true;
+            return true;
+        }
+
+        public synchronized int getCapacity() {
+            return capacity;
+        }
+
+        /**
+         * Changes the number of permits. Builds already holding the lock keep
+         * it, and waiting builds are woken up if the capacity grew.
+         */
+        public void setCapacity(int capacity) {
+            boolean grew;
+            synchronized (this) {
+                grew = capacity > this.capacity;
+                this.capacity = Math.max(1, capacity);
+                publish();
+            }
+            if (grew) {
+                signalWaiters(null);
+            }
         }
 
         public String getName() {
@@ -383,8 +1844,233 @@ public class LockWrapper extends BuildWrapper implements ResourceActivity {
         public void setName(String name) {
             this.name = name;
         }
+
+        /**
+         * How an owner holds a lock.
+         */
+        private static final class Hold {
+            private final boolean shared;
+            private final long since;
+            private int count = 1;
+
+            private Hold(boolean shared, long since) {
+                this.shared = shared;
+                this.since = since;
+            }
+        }
     }
 
+    /**
+     * A {@link NamedReentrantLock}, or {@link #getCount()} locks out of a pool,
+     * as requested by a build in either shared or exclusive mode.
+     */
+    public static final class LockHandle {
+        private final String name;
+        private final List<NamedReentrantLock> candidates;
+        private final int count;
+        private final boolean pool;
+        private final boolean shared;
+
+        public LockHandle(NamedReentrantLock lock, boolean shared) {
+            this.name = lock.getName();
+            this.candidates = Collections.singletonList(lock);
+            this.count = 1;
+            this.pool = false;
+            this.shared = shared;
+        }
+
+        public LockHandle(String pool, List<NamedReentrantLock> candidates, int count, boolean shared) {
+            this.name = pool;
+            this.candidates = Collections.unmodifiableList(candidates);
+            this.count = count;
+            this.pool = true;
+            this.shared = shared;
+        }
+
+        /**
+         * Returns the name of the lock, or of the pool.
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Returns the lock of a handle that is not a pool.
+         */
+        public NamedReentrantLock getLock() {
+            return candidates.get(0);
+        }
+
+        public List<NamedReentrantLock> getCandidates() {
+            return candidates;
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        public boolean isPool() {
+            return pool;
+        }
+
+        public boolean isShared() {
+            return shared;
+        }
+
+        @Override
+        public String toString() {
+            String result = pool ? count + " of pool " + name : name;
+            return shared ? result + " (shared)" : result;
+        }
+    }
+
+    /**
+     * A build waiting for one or more {@link NamedReentrantLock}s. A signal
+     * delivered before {@link #await()} is called is remembered, so a release
+     * can never be missed.
+     */
+    public static final class LockWaiter {
+        /**
+         * How long a build waits before its priority goes up by one.
+         */
+        public static final long AGING_INTERVAL = 60 * 1000L;
+
+        private final Object owner;
+        private final int priority;
+        private final Runnable onSignal;
+        private final long since;
+        private volatile LockHandle blocker;
+        private boolean signalled;
+
+        public LockWaiter() {
+            this(null, 0);
+        }
+
+        /**
+         * @param owner who the waiter is waiting for locks for, normally the build.
+         */
+        public LockWaiter(Object owner, int priority) {
+            this(owner, priority, null);
+        }
+
+        /**
+         * @param onSignal run on every signal, by the thread signalling, for
+         *                 waiters that do not {@link #await()}.
+         */
+        public LockWaiter(Object owner, int priority, Runnable onSignal) {
+            this(owner, priority, onSignal, System.currentTimeMillis());
+        }
+
+        /**
+         * @param since when the owner started waiting, for waits that began
+         *              elsewhere, such as in the queue.
+         */
+        public LockWaiter(Object owner, int priority, long since) {
+            this(owner, priority, null, since);
+        }
+
+        private LockWaiter(Object owner, int priority, Runnable onSignal, long since) {
+            this.owner = owner;
+            this.priority = priority;
+            this.onSignal = onSignal;
+            this.since = since;
+        }
+
+        public Object getOwner() {
+            return owner;
+        }
+
+        public int getPriority() {
+            return priority;
+        }
+
+        /**
+         * Returns when the waiter started waiting.
+         */
+        public long getSince() {
+            return since;
+        }
+
+        /**
+         * Returns the lock that made the last attempt fail, if any.
+         */
+        public LockHandle getBlocker() {
+            return blocker;
+        }
+
+        public void setBlocker(LockHandle blocker) {
+            this.blocker = blocker;
+        }
+
+        /**
+         * Returns the priority raised by one for every {@link #AGING_INTERVAL}
+         * spent waiting, so that builds of low priority get the lock eventually.
+         */
+        public long getEffectivePriority(long now) {
+            return priority + (now - since) / AGING_INTERVAL;
+        }
+
+        public void signal() {
+            synchronized (this) {
+                signalled = true;
+                notifyAll();
+            }
+            if (onSignal != null) {
+                onSignal.run();
+            }
+        }
+
+        public synchronized void await() throws InterruptedException {
+            while (!signalled) {
+                wait();
+            }
+            signalled = false;
+        }
+
+        /**
+         * Waits for a signal for at most the given time.
+         *
+         * @return {@code false} if the time ran out first.
+         */
+        public synchronized boolean await(long timeoutMillis) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            while (!signalled) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                wait(remaining);
+            }
+            signalled = false;
+            return true;
+        }
+    }
+
+    /**
+     * Each run of a multi-configuration job gets its locks on its own.
+     */
+    public static final String MATRIX_SEPARATE = "SEPARATE";
+
+    /**
+     * The runs of a multi-configuration job share the locks of their parent build.
+     */
+    public static final String MATRIX_INHERIT = "INHERIT";
+
+    /**
+     * Like {@link #MATRIX_INHERIT}, but the runs also go one at a time.
+     */
+    public static final String MATRIX_SERIAL = "SERIAL";
+
+    /**
+     * How long a lease taken by a process outside Hudson lasts by default.
+     */
+    static final int DEFAULT_LEASE_SECONDS = 300;
+
+    /**
+     * The build parameter giving the priority of a build, see {@link #getPriority()}.
+     */
+    public static final String PRIORITY_PARAMETER = "LOCK_PRIORITY";
+
     private static final Logger LOGGER = Logger.getLogger(LockWrapper.class.getName());
     
 }
@@ -0,0 +1,155 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2007-2011, Stephen Connolly, Alan Harder, Romain Seguy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package hudson.plugins.locksandlatches;
+
+import hudson.plugins.locksandlatches.LockWrapper.LockHandle;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The locks multi-configuration builds hold for their runs, see
+ * {@link LockWrapper#MATRIX_INHERIT}, and the locks that make their runs go
+ * one at a time, see {@link LockWrapper#MATRIX_SERIAL}.
+ *
+ * @since 0.7
+ */
+public final class MatrixLocks {
+    private final LockTable table;
+
+    /**
+     * The locks taken by each parent build for its runs.
+     */
+    private final ConcurrentMap<Object, InheritedLocks> inheritedLocks = new ConcurrentHashMap<Object, InheritedLocks>();
+
+    public MatrixLocks(LockTable table) {
+        this.table = table;
+    }
+
+    /**
+     * Returns the locks the parent build holds for its runs, taking them for
+     * it if this is the first run to ask. They stay held until
+     * {@link #release(Object)}.
+     *
+     * @return the locks held by the parent, or {@code null} if it could not get them.
+     */
+    public List<LockHandle> inherit(LockPlan plan, LockBackend backend, Object parent, int priority, long maxWait,
+                                    LockTable.Listener listener) throws IOException, InterruptedException {
+        InheritedLocks inherited = inheritedLocks.get(parent);
+        if (inherited == null) {
+            InheritedLocks created = new InheritedLocks();
+            inherited = inheritedLocks.putIfAbsent(parent, created);
+            if (inherited == null) {
+                inherited = created;
+            }
+        }
+        // the other runs wait here while the first one gets the locks
+        inherited.lock.lockInterruptibly();
+        try {
+            if (inherited.held == null) {
+                List<LockHandle> backups = plan.reference(table);
+                List<LockHandle> held = null;
+                try {
+                    held = backend.lockAll(backups, parent, priority, maxWait, listener);
+                } finally {
+                    if (held == null) {
+                        table.dereference(backups);
+                    }
+                }
+                if (held == null) {
+                    return null;
+                }
+                inherited.backend = backend;
+                inherited.backups = backups;
+                inherited.held = held;
+            }
+            return inherited.held;
+        } finally {
+            inherited.lock.unlock();
+        }
+    }
+
+    /**
+     * Releases the locks taken by {@link #inherit} for the parent build,
+     * once it completes.
+     */
+    public void release(Object parent) {
+        InheritedLocks inherited = inheritedLocks.remove(parent);
+        if (inherited == null) {
+            return;
+        }
+        inherited.lock.lock();
+        try {
+            if (inherited.held != null) {
+                inherited.backend.unlockAll(inherited.held, parent);
+                table.dereference(inherited.backups);
+                inherited.held = null;
+            }
+        } finally {
+            inherited.lock.unlock();
+        }
+    }
+
+    /**
+     * Takes the lock the runs of a parent build queue on to go one at a
+     * time. It only exists in the lock table while they use it.
+     *
+     * @param parent the name of the parent build.
+     * @return the lock, to be passed to {@link #unlockSerial(List, Object)},
+     *         or {@code null} if the run could not get it.
+     */
+    public List<LockHandle> lockSerial(String parent, Object run, int priority, long maxWait, LockTable.Listener listener)
+            throws InterruptedException {
+        List<LockHandle> serial = table.reference(Collections.singletonMap("(runs of " + parent + ")", false));
+        List<LockHandle> locked = null;
+        try {
+            locked = LockTable.lockAll(serial, run, priority, maxWait, listener);
+        } finally {
+            if (locked == null) {
+                table.dereference(serial);
+            }
+        }
+        return locked;
+    }
+
+    public void unlockSerial(List<LockHandle> serial, Object run) {
+        LockTable.unlockAll(serial, run);
+        table.dereference(serial);
+    }
+
+    /**
+     * The locks a multi-configuration build holds for its runs.
+     */
+    private static final class InheritedLocks {
+        private final ReentrantLock lock = new ReentrantLock();
+        private LockBackend backend;
+        private List<LockHandle> backups;
+        private List<LockHandle> held;
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2007-2011, Stephen Connolly, Alan Harder, Romain Seguy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package hudson.plugins.locksandlatches;
+
+import hudson.plugins.locksandlatches.LockWrapper.LockHandle;
+import hudson.plugins.locksandlatches.LockWrapper.NamedReentrantLock;
+
+import java.util.List;
+
+/**
+ * The default {@link LockBackend}, where the locks are only shared by the
+ * builds of this Hudson.
+ *
+ * @since 0.7
+ */
+public final class MemoryLockBackend implements LockBackend {
+    public List<LockHandle> lockAll(List<LockHandle> locks, Object owner, int priority, long maxWait, LockTable.Listener listener)
+            throws InterruptedException {
+        return LockTable.lockAll(locks, owner, priority, maxWait, listener);
+    }
+
+    public void unlockAll(List<LockHandle> locks, Object owner) {
+        LockTable.unlockAll(locks, owner);
+    }
+
+    public boolean release(NamedReentrantLock lock, Object owner) {
+        return lock.release(owner);
+    }
+}
@@ -0,0 +1,346 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2007-2011, Stephen Connolly, Alan Harder, Romain Seguy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package hudson.plugins.locksandlatches;
+
+import hudson.plugins.locksandlatches.LockWrapper.LockHandle;
+import hudson.plugins.locksandlatches.LockWrapper.NamedReentrantLock;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URLEncoder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A {@link LockBackend} sharing the locks with the other Hudson instances
+ * using the same directory, typically on a shared file system.
+ * <p>
+ * Each lock has a lease file in the directory. A build holding the lock
+ * exclusively locks one byte of the file, one byte per unit of capacity,
+ * while builds holding it shared all lock the whole file in shared mode. The
+ * operating system drops these file locks when a Hudson instance dies, so a
+ * crash cannot leave a lock held.
+ * <p>
+ * The builds of this Hudson first get their locks from the {@link LockTable},
+ * which keeps waking them up as soon as a lock is released here, and then
+ * their leases. Nothing tells us when another instance gives a lease back,
+ * so a build missing a lease gives all its locks back and tries again after
+ * a pause that grows from {@link #MIN_BACKOFF} to {@link #MAX_BACKOFF}
+ * milliseconds. A pool member leased elsewhere is left out of the next
+ * attempts, so that the build can fall through to the other members.
+ *
+ * @since 0.7
+ */
+public final class SharedFileLockBackend implements LockBackend {
+    static final long MIN_BACKOFF = 10;
+    static final long MAX_BACKOFF = 1000;
+
+    private final File directory;
+    private final LockBackend local = new MemoryLockBackend();
+
+    /**
+     * The leases held by this Hudson, by lock name. Guarded by {@code this}.
+     */
+    private final Map<String, Lease> leases = new HashMap<String, Lease>();
+
+    public SharedFileLockBackend(File directory) {
+        this.directory = directory;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    public List<LockHandle> lockAll(List<LockHandle> locks, Object owner, int priority, long maxWait, LockTable.Listener listener)
+            throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + maxWait;
+        long backoff = MIN_BACKOFF;
+        Set<NamedReentrantLock> leasedElsewhere = new HashSet<NamedReentrantLock>();
+        while (true) {
+            long remaining = maxWait < 0 ? -1 : Math.max(0, deadline - System.currentTimeMillis());
+            List<LockHandle> held;
+            if (leasedElsewhere.isEmpty()) {
+                held = local.lockAll(locks, owner, priority, remaining, listener);
+                if (held == null) {
+                    return null;
+                }
+            } else {
+                // the members left out may be given back elsewhere meanwhile, so do not wait long for the others
+                long wait = remaining < 0 ? MAX_BACKOFF : Math.min(remaining, MAX_BACKOFF);
+                held = local.lockAll(exclude(locks, leasedElsewhere), owner, priority, wait, null);
+                if (held == null) {
+                    leasedElsewhere.clear();
+                    if (maxWait >= 0 && System.currentTimeMillis() >= deadline) {
+                        return null;
+                    }
+                    continue;
+                }
+            }
+            LockHandle blocker = leaseAll(held, owner);
+            if (blocker == null) {
+                return held;
+            }
+            if (isPoolMember(locks, blocker.getLock())) {
+                leasedElsewhere.add(blocker.getLock());
+            }
+            // the build did not start, so rate limited locks get their tokens back
+            LockTable.rollbackAll(held, owner);
+            remaining = deadline - System.currentTimeMillis();
+            boolean waiting = maxWait < 0 || remaining > 0;
+            if (listener != null) {
+                listener.blocked(blocker, waiting);
+            }
+            if (!waiting) {
+                return null;
+            }
+            Thread.sleep(maxWait < 0 ? backoff : Math.min(backoff, remaining));
+            backoff = Math.min(backoff * 2, MAX_BACKOFF);
+        }
+    }
+
+    /**
+     * Tells whether the lock is only wanted as a member of a pool, so that
+     * another member can do instead.
+     */
+    private static boolean isPoolMember(List<LockHandle> locks, NamedReentrantLock lock) {
+        boolean member = false;
+        for (LockHandle handle : locks) {
+            if (!handle.isPool() && handle.getLock() == lock) {
+                return false;
+            }
+            member |= handle.isPool() && handle.getCandidates().contains(lock);
+        }
+        return member;
+    }
+
+    /**
+     * Returns the locks with the given members left out of their pools, as
+     * long as the pools keep enough members. A pool that would not is left
+     * whole, and its members will be tried again.
+     */
+    private static List<LockHandle> exclude(List<LockHandle> locks, Set<NamedReentrantLock> excluded) {
+        List<LockHandle> result = new ArrayList<LockHandle>(locks.size());
+        for (LockHandle handle : locks) {
+            if (!handle.isPool()) {
+                result.add(handle);
+                continue;
+            }
+            List<NamedReentrantLock> candidates = new ArrayList<NamedReentrantLock>(handle.getCandidates());
+            candidates.removeAll(excluded);
+            if (candidates.size() < handle.getCount()) {
+                excluded.removeAll(handle.getCandidates());
+                result.add(handle);
+            } else {
+                result.add(new LockHandle(handle.getName(), candidates, handle.getCount(), handle.isShared()));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Leases the locks held here, or none of them.
+     *
+     * @return {@code null} on success, or the lock that is leased elsewhere.
+     */
+    private LockHandle leaseAll(List<LockHandle> held, Object owner) throws IOException {
+        for (int i = 0; i < held.size(); i++) {
+            LockHandle lock = held.get(i);
+            boolean leased = false;
+            try {
+                leased = lease(lock.getLock(), lock.isShared(), owner);
+            } finally {
+                if (!leased) {
+                    for (int j = i - 1; j >= 0; j--) {
+                        unlease(held.get(j).getLock().getName(), owner, false);
+                    }
+                }
+            }
+            if (!leased) {
+                return lock;
+            }
+        }
+        return null;
+    }
+
+    public void unlockAll(List<LockHandle> locks, Object owner) {
+        for (int i = locks.size() - 1; i >= 0; i--) {
+            unlease(locks.get(i).getLock().getName(), owner, false);
+        }
+        local.unlockAll(locks, owner);
+    }
+
+    public boolean release(NamedReentrantLock lock, Object owner) {
+        unlease(lock.getName(), owner, true);
+        return local.release(lock, owner);
+    }
+
+    private synchronized boolean lease(NamedReentrantLock lock, boolean shared, Object owner) throws IOException {
+        Lease lease = leases.get(lock.getName());
+        if (lease == null) {
+            lease = new Lease(new File(directory, URLEncoder.encode(lock.getName(), "UTF-8") + ".lease"));
+            leases.put(lock.getName(), lease);
+        }
+        boolean leased = false;
+        try {
+            leased = lease.acquire(owner, shared, lock.getCapacity());
+        } finally {
+            if (lease.isUnused()) {
+                leases.remove(lock.getName());
+                lease.close();
+            }
+        }
+        return leased;
+    }
+
+    private synchronized void unlease(String name, Object owner, boolean all) {
+        Lease lease = leases.get(name);
+        if (lease == null) {
+            return;
+        }
+        try {
+            lease.release(owner, all);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to give back the lease of " + name, e);
+        }
+        if (lease.isUnused()) {
+            leases.remove(name);
+            lease.close();
+        }
+    }
+
+    /**
+     * The file locks held by this Hudson on the lease file of one lock.
+     */
+    private static final class Lease {
+        private final File file;
+        private FileChannel channel;
+
+        /**
+         * The lock on the whole file, held while any owner holds the lock shared.
+         */
+        private FileLock sharedLock;
+        private int sharedOwners;
+
+        /**
+         * The lock on one byte of the file for each exclusive owner, or
+         * {@code null} for shared owners.
+         */
+        private final Map<Object, FileLock> owners = new HashMap<Object, FileLock>();
+        private final Map<Object, Integer> counts = new HashMap<Object, Integer>();
+
+        private Lease(File file) {
+            this.file = file;
+        }
+
+        boolean acquire(Object owner, boolean shared, int capacity) throws IOException {
+            Integer count = counts.get(owner);
+            if (count != null) {
+                counts.put(owner, count + 1);
+                return true;
+            }
+            if (channel == null) {
+                file.getParentFile().mkdirs();
+                channel = new RandomAccessFile(file, "rw").getChannel();
+            }
+            FileLock lock = null;
+            if (shared) {
+                if (sharedLock == null) {
+                    sharedLock = channel.tryLock(0, Long.MAX_VALUE, true);
+                    if (sharedLock == null) {
+                        return false;
+                    }
+                }
+                sharedOwners++;
+            } else {
+                for (int slot = 0; lock == null && slot < capacity; slot++) {
+                    if (!isTaken(slot)) {
+                        lock = channel.tryLock(slot, 1, false);
+                    }
+                }
+                if (lock == null) {
+                    return false;
+                }
+            }
+            owners.put(owner, lock);
+            counts.put(owner, 1);
+            return true;
+        }
+
+        private boolean isTaken(long slot) {
+            for (FileLock lock : owners.values()) {
+                if (lock != null && lock.position() == slot) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        void release(Object owner, boolean all) throws IOException {
+            Integer count = counts.get(owner);
+            if (count == null) {
+                return;
+            }
+            if (!all && count > 1) {
+                counts.put(owner, count - 1);
+                return;
+            }
+            counts.remove(owner);
+            FileLock lock = owners.remove(owner);
+            if (lock != null) {
+                lock.release();
+            } else if (--sharedOwners == 0) {
+                sharedLock.release();
+                sharedLock = null;
+            }
+        }
+
+        boolean isUnused() {
+            return owners.isEmpty();
+        }
+
+        void close() {
+            if (channel != null) {
+                try {
+                    // also drops any file lock left
+                    channel.close();
+                } catch (IOException e) {
+                    LOGGER.log(Level.FINE, "Failed to close " + file, e);
+                }
+                channel = null;
+            }
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(SharedFileLockBackend.class.getName());
+}
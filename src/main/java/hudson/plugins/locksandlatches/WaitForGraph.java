@@ -0,0 +1,269 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2007-2011, Stephen Connolly, Alan Harder, Romain Seguy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package hudson.plugins.locksandlatches;
+
+import hudson.plugins.locksandlatches.LockWrapper.LockHandle;
+import hudson.plugins.locksandlatches.LockWrapper.LockWaiter;
+import hudson.plugins.locksandlatches.LockWrapper.NamedReentrantLock;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Who is waiting for whom, as a graph from the owners waiting for locks to
+ * the owners holding them.
+ * <p>
+ * {@link #of(LockTable)} takes a snapshot of the waits for locks. Waits the
+ * lock table does not know about can be added with
+ * {@link #addWaiter(LockWaiter)}, such as a build kept in the Queue, or with
+ * {@link #addEdge(Object, Object, String)}. A cycle in the graph is a
+ * deadlock, since the builds in it will wait forever.
+ * <p>
+ * Waits that may not be real, such as an upstream build for a downstream
+ * build it may or may not wait for, are added with
+ * {@link #addPossibleEdge(Object, Object, String)}. A cycle going through
+ * one of them is only a possible deadlock.
+ *
+ * @since 0.7
+ */
+public final class WaitForGraph {
+    /**
+     * The owners each owner waits for, mapped to why it waits for them.
+     */
+    private final Map<Object, Map<Object, String>> edges = new LinkedHashMap<Object, Map<Object, String>>();
+
+    /**
+     * The owners each owner may wait for, mapped to why, other than {@link #edges}.
+     */
+    private final Map<Object, Map<Object, String>> possibleEdges = new LinkedHashMap<Object, Map<Object, String>>();
+
+    /**
+     * The owners waiting for locks, mapped to the waiter doing the waiting.
+     */
+    private final Map<Object, LockWaiter> waiters = new LinkedHashMap<Object, LockWaiter>();
+
+    /**
+     * Returns the waits for the locks of the table as they are now.
+     */
+    public static WaitForGraph of(LockTable table) {
+        WaitForGraph graph = new WaitForGraph();
+        for (NamedReentrantLock lock : table.getLocks()) {
+            // waiters are registered on every lock they want, only add them once
+            for (LockWaiter waiter : lock.getWaiters()) {
+                if (waiter.getOwner() != null && !graph.waiters.containsKey(waiter.getOwner())) {
+                    graph.addWaiter(waiter);
+                }
+            }
+        }
+        return graph;
+    }
+
+    /**
+     * Records that the owner of the waiter waits for the holders of the lock
+     * that stopped it, for instance for a build the Queue keeps until its
+     * locks are free.
+     */
+    public void addWaiter(LockWaiter waiter) {
+        waiters.put(waiter.getOwner(), waiter);
+        LockHandle blocker = waiter.getBlocker();
+        if (blocker == null) {
+            return;
+        }
+        for (NamedReentrantLock lock : blocker.getCandidates()) {
+            for (Object holder : lock.getHolders().keySet()) {
+                if (!holder.equals(waiter.getOwner())) {
+                    addEdge(waiter.getOwner(), holder, lock.getName());
+                }
+            }
+        }
+    }
+
+    /**
+     * Records that {@code from} waits for {@code to}.
+     *
+     * @param reason what {@code from} waits for, for instance the name of a lock.
+     */
+    public void addEdge(Object from, Object to, String reason) {
+        addEdge(edges, from, to, reason);
+    }
+
+    /**
+     * Records that {@code from} may wait for {@code to}, without knowing
+     * whether it does.
+     *
+     * @param reason what {@code from} may wait for, for instance a downstream build.
+     */
+    public void addPossibleEdge(Object from, Object to, String reason) {
+        addEdge(possibleEdges, from, to, reason);
+    }
+
+    private static void addEdge(Map<Object, Map<Object, String>> edges, Object from, Object to, String reason) {
+        Map<Object, String> targets = edges.get(from);
+        if (targets == null) {
+            targets = new LinkedHashMap<Object, String>();
+            edges.put(from, targets);
+        }
+        String previous = targets.get(to);
+        targets.put(to, previous == null ? reason : previous + ", " + reason);
+    }
+
+    /**
+     * Returns the owners each owner waits for, mapped to why it waits for them.
+     */
+    public Map<Object, Map<Object, String>> getEdges() {
+        return Collections.unmodifiableMap(edges);
+    }
+
+    /**
+     * Returns the owners each owner may wait for, mapped to why it may wait for them.
+     */
+    public Map<Object, Map<Object, String>> getPossibleEdges() {
+        return Collections.unmodifiableMap(possibleEdges);
+    }
+
+    /**
+     * Returns the owners waiting for locks, mapped to the waiter doing the waiting.
+     */
+    public Map<Object, LockWaiter> getWaiters() {
+        return Collections.unmodifiableMap(waiters);
+    }
+
+    /**
+     * Returns the owners that have been waiting for locks for longer than the
+     * given time, longest waiting first.
+     */
+    public List<LockWaiter> findStarved(long threshold, long now) {
+        List<LockWaiter> starved = new ArrayList<LockWaiter>();
+        for (LockWaiter waiter : waiters.values()) {
+            if (now - waiter.getSince() > threshold) {
+                starved.add(waiter);
+            }
+        }
+        Collections.sort(starved, new Comparator<LockWaiter>() {
+            public int compare(LockWaiter w1, LockWaiter w2) {
+                return w1.getSince() < w2.getSince() ? -1 : w1.getSince() > w2.getSince() ? 1 : 0;
+            }
+        });
+        return starved;
+    }
+
+    /**
+     * Returns the groups of owners waiting for each other, each of which is
+     * a deadlock.
+     */
+    public List<List<Object>> findCycles() {
+        return new CycleFinder(edges).find();
+    }
+
+    /**
+     * Returns the groups of owners that would be waiting for each other if
+     * their possible waits were real, other than those found by
+     * {@link #findCycles()}.
+     */
+    public List<List<Object>> findPossibleCycles() {
+        Map<Object, Map<Object, String>> all = new LinkedHashMap<Object, Map<Object, String>>();
+        for (Map<Object, Map<Object, String>> some : Arrays.asList(edges, possibleEdges)) {
+            for (Map.Entry<Object, Map<Object, String>> from : some.entrySet()) {
+                for (Map.Entry<Object, String> to : from.getValue().entrySet()) {
+                    addEdge(all, from.getKey(), to.getKey(), to.getValue());
+                }
+            }
+        }
+        Set<Set<Object>> certain = new HashSet<Set<Object>>();
+        for (List<Object> cycle : findCycles()) {
+            certain.add(new HashSet<Object>(cycle));
+        }
+        List<List<Object>> cycles = new ArrayList<List<Object>>();
+        for (List<Object> cycle : new CycleFinder(all).find()) {
+            if (!certain.contains(new HashSet<Object>(cycle))) {
+                cycles.add(cycle);
+            }
+        }
+        return cycles;
+    }
+
+    /**
+     * Tarjan's algorithm for the strongly connected components of the graph,
+     * keeping those with a cycle.
+     */
+    private static final class CycleFinder {
+        private final Map<Object, Map<Object, String>> edges;
+        private final Map<Object, Integer> index = new HashMap<Object, Integer>();
+        private final Map<Object, Integer> lowLink = new HashMap<Object, Integer>();
+        private final List<Object> stack = new ArrayList<Object>();
+        private final List<List<Object>> cycles = new ArrayList<List<Object>>();
+
+        CycleFinder(Map<Object, Map<Object, String>> edges) {
+            this.edges = edges;
+        }
+
+        List<List<Object>> find() {
+            for (Object owner : edges.keySet()) {
+                if (!index.containsKey(owner)) {
+                    visit(owner);
+                }
+            }
+            return cycles;
+        }
+
+        private void visit(Object owner) {
+            int i = index.size();
+            index.put(owner, i);
+            lowLink.put(owner, i);
+            stack.add(owner);
+            Map<Object, String> targets = edges.get(owner);
+            if (targets != null) {
+                for (Object target : targets.keySet()) {
+                    if (!index.containsKey(target)) {
+                        visit(target);
+                        lowLink.put(owner, Math.min(lowLink.get(owner), lowLink.get(target)));
+                    } else if (stack.contains(target)) {
+                        lowLink.put(owner, Math.min(lowLink.get(owner), index.get(target)));
+                    }
+                }
+            }
+            if (lowLink.get(owner).equals(index.get(owner))) {
+                List<Object> component = new ArrayList<Object>();
+                Object member;
+                do {
+                    member = stack.remove(stack.size() - 1);
+                    component.add(member);
+                } while (member != owner);
+                if (component.size() > 1 || targets != null && targets.containsKey(owner)) {
+                    Collections.reverse(component);
+                    cycles.add(component);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2007-2011, Stephen Connolly, Alan Harder, Romain Seguy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package hudson.plugins.locksandlatches;
+
+import hudson.plugins.locksandlatches.LatchWrapper.LatchConfig;
+import junit.framework.TestCase;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class LatchTableTest extends TestCase {
+    private final LatchTable table = new LatchTable();
+    private final LatchConfig latch = new LatchConfig("latch", 2, 0);
+
+    public void testLatchOpensAtItsCount() throws Exception {
+        table.register("one", only(latch));
+        assertFalse(table.isOpen(latch));
+        table.register("two", only(latch));
+        assertTrue(table.isOpen(latch));
+        assertTrue(table.await(latch, 0));
+    }
+
+    public void testWaitingBuildIsLetThroughWhenTheLatchOpens() throws Exception {
+        table.register("one", only(latch));
+        final AtomicBoolean opened = new AtomicBoolean();
+        Thread waiter = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    opened.set(table.await(latch, 0));
+                } catch (InterruptedException e) {
+                    // the test fails below
+                }
+            }
+        };
+        waiter.start();
+        waiter.join(200);
+        assertTrue(waiter.isAlive());
+
+        table.register("two", only(latch));
+        waiter.join(5000);
+        assertTrue(opened.get());
+    }
+
+    public void testAwaitTimesOut() throws Exception {
+        table.register("one", only(latch));
+        long start = System.currentTimeMillis();
+        assertFalse(table.await(latch, 100));
+        assertTrue(System.currentTimeMillis() - start >= 100);
+    }
+
+    public void testTimeoutIsInMinutes() {
+        assertEquals(2 * 60 * 1000L, new LatchConfig("latch", 1, 2).getTimeoutMillis());
+        assertEquals(0, new LatchConfig("latch", 1, 0).getTimeoutMillis());
+    }
+
+    public void testLatchClosesOnceEveryBuildIsDone() {
+        table.register("one", only(latch));
+        table.register("two", only(latch));
+        table.unregister("one", only(latch));
+        assertTrue(table.isOpen(latch));
+        table.unregister("two", only(latch));
+        assertFalse(table.isOpen(latch));
+
+        table.register("three", only(latch));
+        assertFalse(table.isOpen(latch));
+    }
+
+    public void testBarrierLetsAGroupThroughAndResets() throws Exception {
+        final LatchConfig barrier = new LatchConfig("barrier", 2, 0, true);
+        final int generation = table.register("one", only(barrier)).get(barrier);
+        assertEquals(0, generation);
+        final AtomicBoolean reached = new AtomicBoolean();
+        Thread waiter = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    reached.set(table.awaitBarrier(barrier, generation, "one", 0));
+                } catch (InterruptedException e) {
+                    // the test fails below
+                }
+            }
+        };
+        waiter.start();
+        waiter.join(200);
+        assertTrue(waiter.isAlive());
+
+        assertEquals(0, table.register("two", only(barrier)).get(barrier).intValue());
+        waiter.join(5000);
+        assertTrue(reached.get());
+        assertTrue(table.awaitBarrier(barrier, 0, "two", 0));
+        assertEquals(1, table.getGeneration(barrier));
+
+        // the next group waits again
+        assertEquals(1, table.register("three", only(barrier)).get(barrier).intValue());
+        assertFalse(table.awaitBarrier(barrier, 1, "three", 50));
+    }
+
+    public void testBuildTimedOutAtBarrierNoLongerCounts() throws Exception {
+        LatchConfig barrier = new LatchConfig("barrier", 2, 0, true);
+        table.register("one", only(barrier));
+        assertFalse(table.awaitBarrier(barrier, 0, "one", 50));
+
+        table.register("two", only(barrier));
+        assertEquals(0, table.getGeneration(barrier));
+        table.register("three", only(barrier));
+        assertEquals(1, table.getGeneration(barrier));
+    }
+
+    private static Set<LatchConfig> only(LatchConfig latch) {
+        return Collections.singleton(latch);
+    }
+}
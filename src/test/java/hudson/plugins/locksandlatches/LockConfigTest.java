@@ -0,0 +1,96 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2007-2011, Stephen Connolly, Alan Harder, Romain Seguy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package hudson.plugins.locksandlatches;
+
+import hudson.plugins.locksandlatches.LockWrapper.LockConfig;
+import junit.framework.TestCase;
+
+public class LockConfigTest extends TestCase {
+    public void testParseNameOnly() {
+        LockConfig lock = LockConfig.parse("  deploy-prod ");
+        assertEquals("deploy-prod", lock.getName());
+        assertEquals(1, lock.getCapacity());
+        assertNull(lock.getPool());
+        assertEquals(0, lock.getRate());
+    }
+
+    public void testParseSettings() {
+        LockConfig lock = LockConfig.parse("deploy-prod capacity=2 pool=deploy rate=6 burst=3");
+        assertEquals("deploy-prod", lock.getName());
+        assertEquals(2, lock.getCapacity());
+        assertEquals("deploy", lock.getPool());
+        assertEquals(6, lock.getRate());
+        assertEquals(3, lock.getBurst());
+    }
+
+    public void testParseQuoted() {
+        LockConfig lock = LockConfig.parse("\"deploy prod\" pool=\"deploy servers\"");
+        assertEquals("deploy prod", lock.getName());
+        assertEquals("deploy servers", lock.getPool());
+
+        assertEquals("say \"hi\" \\o/", LockConfig.parse("\"say \\\"hi\\\" \\\\o/\"").getName());
+        assertEquals("key=value", LockConfig.parse("\"key=value\" capacity=2").getName());
+    }
+
+    public void testUnquotedSpacesAreRejected() {
+        assertInvalid("deploy prod capacity=2");
+        assertInvalid("deploy capacity=2 prod");
+    }
+
+    public void testInvalidLinesAreRejected() {
+        assertInvalid("deploy capacity=0");
+        assertInvalid("deploy capacity=two");
+        assertInvalid("deploy colour=red");
+        assertInvalid("\"deploy prod");
+        assertInvalid("\"\" capacity=2");
+    }
+
+    public void testRoundTrip() {
+        assertRoundTrip(new LockConfig("deploy-prod", 2, "deploy", 6, 3), "deploy-prod capacity=2 pool=deploy rate=6 burst=3");
+        assertRoundTrip(new LockConfig("deploy prod", 1, "deploy servers"), "\"deploy prod\" pool=\"deploy servers\"");
+        assertRoundTrip(new LockConfig("deploy key=value", 1, null), "\"deploy key=value\"");
+        assertRoundTrip(new LockConfig("#1", 1, "a\"b\\c"), "\"#1\" pool=\"a\\\"b\\\\c\"");
+    }
+
+    private static void assertRoundTrip(LockConfig lock, String definition) {
+        assertEquals(definition, lock.toDefinition());
+        LockConfig read = LockConfig.parse(definition);
+        assertEquals(lock.getName(), read.getName());
+        assertEquals(lock.getCapacity(), read.getCapacity());
+        assertEquals(lock.getPool(), read.getPool());
+        assertEquals(lock.getRate(), read.getRate());
+        assertEquals(lock.getBurst(), read.getBurst());
+    }
+
+    private static void assertInvalid(String line) {
+        try {
+            LockConfig.parse(line);
+            fail("read " + line);
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
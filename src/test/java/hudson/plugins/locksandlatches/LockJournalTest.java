@@ -0,0 +1,147 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2007-2011, Stephen Connolly, Alan Harder, Romain Seguy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package hudson.plugins.locksandlatches;
+
+import hudson.plugins.locksandlatches.LockJournal.RestoredOwner;
+import hudson.plugins.locksandlatches.LockWrapper.LockHandle;
+import hudson.plugins.locksandlatches.LockWrapper.NamedReentrantLock;
+import junit.framework.TestCase;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+public class LockJournalTest extends TestCase {
+    private File file;
+
+    @Override
+    protected void setUp() throws Exception {
+        file = File.createTempFile("locks", ".journal");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        file.delete();
+    }
+
+    public void testMissingJournalRestoresNothing() throws Exception {
+        file.delete();
+        assertEquals(0, new LockJournal(file, new LockTable()).replay());
+    }
+
+    public void testOnlyHoldsNotGivenBackAreRestored() throws Exception {
+        write("A\tX\tjob#1\tdeploy\n"
+                + "A\tS\tjob#2\tdb\n"
+                + "A\tS\tjob#3\tdb\n"
+                + "R\tX\tjob#2\tdb\n"
+                + "A\tX\tjob#4\ttest\n"
+                + "R\tX\tjob#4\ttest\n");
+        LockTable table = new LockTable();
+
+        assertEquals(2, new LockJournal(file, table).replay());
+        assertEquals(Collections.singletonMap(new RestoredOwner("job#1"), false), table.getLock("deploy").getHolderModes());
+        assertEquals(Collections.singletonMap(new RestoredOwner("job#3"), true), table.getLock("db").getHolderModes());
+        assertTrue(table.getLock("test").getHolders().isEmpty());
+    }
+
+    public void testHoldTakenAgainIsRestoredOnce() throws Exception {
+        write("A\tX\tjob#1\tdeploy\n"
+                + "A\tX\tjob#1\tdeploy\n");
+        LockTable table = new LockTable();
+
+        assertEquals(1, new LockJournal(file, table).replay());
+        assertEquals(1, table.getLock("deploy").getHolders().size());
+    }
+
+    public void testLineCutShortIsIgnored() throws Exception {
+        write("A\tX\tjob#1\tdeploy\n"
+                + "R\tX\tjob#1");
+        LockTable table = new LockTable();
+
+        assertEquals(1, new LockJournal(file, table).replay());
+        assertTrue(table.getLock("deploy").getHolders().containsKey(new RestoredOwner("job#1")));
+    }
+
+    public void testRecordedHoldsAreReplayed() throws Exception {
+        file.delete();
+        LockTable table = new LockTable();
+        new LockJournal(file, table).start();
+        List<LockHandle> held = LockTable.lockAll(table.reference(Collections.singletonMap("deploy", false)),
+                new RestoredOwner("job#1"), 0, null);
+        LockTable.lockAll(table.reference(Collections.singletonMap("db", true)), new RestoredOwner("job#2"), 0, null);
+        LockTable.unlockAll(held, new RestoredOwner("job#1"));
+        // the holds of other owners are not worth keeping
+        LockTable.lockAll(table.reference(Collections.singletonMap("test", false)), "lease", 0, null);
+        waitForRecords(3);
+
+        LockTable restored = new LockTable();
+        assertEquals(1, new LockJournal(file, restored).replay());
+        Map<Object, Boolean> holders = restored.getLock("db").getHolderModes();
+        assertEquals(Collections.singletonMap(new RestoredOwner("job#2"), true), holders);
+        NamedReentrantLock deploy = restored.peekLock("deploy");
+        assertTrue(deploy == null || deploy.getHolders().isEmpty());
+    }
+
+    private void write(String records) throws IOException {
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            writer.write(records);
+        } finally {
+            writer.close();
+        }
+    }
+
+    private void waitForRecords(int count) throws Exception {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (countLines() < count) {
+            assertTrue("journal not written", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private int countLines() throws IOException {
+        if (!file.exists()) {
+            return 0;
+        }
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            int lines = 0;
+            while (reader.readLine() != null) {
+                lines++;
+            }
+            return lines;
+        } finally {
+            reader.close();
+        }
+    }
+}
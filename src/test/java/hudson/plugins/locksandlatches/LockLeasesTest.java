@@ -0,0 +1,103 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2007-2011, Stephen Connolly, Alan Harder, Romain Seguy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package hudson.plugins.locksandlatches;
+
+import hudson.plugins.locksandlatches.LockWrapper.LockHandle;
+import hudson.plugins.locksandlatches.LockWrapper.NamedReentrantLock;
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class LockLeasesTest extends TestCase {
+    private final LockTable table = new LockTable();
+    private final LockLeases leases = new LockLeases();
+    private final RecordingBackend backend = new RecordingBackend();
+
+    public void testLeaseTakesAndGivesBackThroughTheBackend() throws Exception {
+        LockLeases.Lease lease = leases.tryAcquire(backend, lock("db"), "client", 60000, null);
+        assertNotNull(lease);
+        assertEquals(1, backend.taken.size());
+        assertEquals("lease of client", table.getLock("db").getHolders().keySet().iterator().next().toString());
+
+        assertTrue(leases.release(lease.getToken()));
+        assertEquals(1, backend.given.size());
+        assertSame(lease.getHeld().get(0), backend.given.get(0));
+        assertTrue(table.getLock("db").getHolders().isEmpty());
+    }
+
+    public void testBusyLockIsNotLeased() throws Exception {
+        assertNotNull(leases.tryAcquire(backend, lock("db"), "first", 60000, null));
+        final boolean[] cleanedUp = new boolean[1];
+
+        assertNull(leases.tryAcquire(backend, lock("db"), "second", 60000, new Runnable() {
+            public void run() {
+                cleanedUp[0] = true;
+            }
+        }));
+        assertTrue(cleanedUp[0]);
+        assertEquals(1, leases.getLeases().size());
+    }
+
+    public void testExpiredLeaseIsGivenBack() throws Exception {
+        LockLeases.Lease lease = leases.tryAcquire(backend, lock("db"), "client", 10, null);
+
+        assertEquals(Collections.singletonList(lease), leases.expire(lease.getExpires()));
+        assertEquals(1, backend.given.size());
+        assertNull(leases.get(lease.getToken()));
+        assertFalse(leases.renew(lease.getToken()));
+    }
+
+    private List<LockHandle> lock(String name) {
+        return table.reference(Collections.singletonMap(name, false));
+    }
+
+    private static final class RecordingBackend implements LockBackend {
+        private final LockBackend delegate = new MemoryLockBackend();
+        private final List<LockHandle> taken = new ArrayList<LockHandle>();
+        private final List<LockHandle> given = new ArrayList<LockHandle>();
+
+        public List<LockHandle> lockAll(List<LockHandle> locks, Object owner, int priority, long maxWait,
+                                        LockTable.Listener listener) throws IOException, InterruptedException {
+            List<LockHandle> held = delegate.lockAll(locks, owner, priority, maxWait, listener);
+            if (held != null) {
+                taken.addAll(held);
+            }
+            return held;
+        }
+
+        public void unlockAll(List<LockHandle> locks, Object owner) {
+            given.addAll(locks);
+            delegate.unlockAll(locks, owner);
+        }
+
+        public boolean release(NamedReentrantLock lock, Object owner) {
+            return delegate.release(lock, owner);
+        }
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2007-2011, Stephen Connolly, Alan Harder, Romain Seguy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package hudson.plugins.locksandlatches;
+
+import hudson.plugins.locksandlatches.LockWrapper.LockConfig;
+import hudson.plugins.locksandlatches.LockWrapper.LockHandle;
+import hudson.plugins.locksandlatches.LockWrapper.LockWaitConfig;
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+public class LockPlanTest extends TestCase {
+    private static final Map<String, List<String>> POOLS =
+            Collections.singletonMap("db", Arrays.asList("db1", "db2"));
+
+    public void testSameLockCompetes() {
+        assertTrue(plan(lock("deploy", false)).competesWith(plan(lock("deploy", false))));
+        assertTrue(plan(lock("deploy", true)).competesWith(plan(lock("deploy", false))));
+        assertTrue(plan(lock("deploy", false)).competesWith(plan(lock("deploy", true))));
+    }
+
+    public void testSharedLockDoesNotCompete() {
+        assertFalse(plan(lock("deploy", true)).competesWith(plan(lock("deploy", true))));
+    }
+
+    public void testOtherLockDoesNotCompete() {
+        assertFalse(plan(lock("deploy", false)).competesWith(plan(lock("test", false))));
+    }
+
+    public void testPoolCompetesWithItsMembers() {
+        assertTrue(plan(lock("db", false)).competesWith(plan(lock("db2", false))));
+        assertTrue(plan(lock("db1", false)).competesWith(plan(lock("db", false))));
+        assertFalse(plan(lock("db", true)).competesWith(plan(lock("db1", true))));
+    }
+
+    public void testNamesAndModes() {
+        LockPlan plan = plan(lock("deploy", true), lock("db", false), lock("deploy", false), lock(" ", false));
+        assertEquals("deploy,db,deploy", plan.getNames());
+        assertEquals(Collections.singletonMap("deploy", false), plan.getLockModes());
+        assertEquals(1, plan.getPoolRequests().size());
+    }
+
+    public void testBusyPoolListsOnlyItsBusyMembers() throws Exception {
+        LockTable table = new LockTable();
+        LockPlan plan = plan(new LockWaitConfig("db", false, 2));
+        assertNull(plan.findBusyLock(table));
+
+        assertNotNull(LockTable.lockAll(table.reference(Collections.singletonMap("db2", false)), "other", 0, null));
+        LockHandle busy = plan.findBusyLock(table);
+        assertEquals("2 of pool db", busy.toString());
+        assertEquals(Collections.singletonList(table.peekLock("db2")), busy.getCandidates());
+    }
+
+    private static LockWaitConfig lock(String name, boolean shared) {
+        return new LockWaitConfig(name, shared, 1);
+    }
+
+    private static LockPlan plan(LockWaitConfig... locks) {
+        return new LockPlan(Arrays.asList(locks), POOLS, Collections.<String, LockConfig>emptyMap(), 0);
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2007-2011, Stephen Connolly, Alan Harder, Romain Seguy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package hudson.plugins.locksandlatches;
+
+import hudson.plugins.locksandlatches.LockWrapper.LockHandle;
+import hudson.plugins.locksandlatches.LockWrapper.NamedReentrantLock;
+import junit.framework.TestCase;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class LockRequestTest extends TestCase {
+    private final LockTable table = new LockTable();
+    private final RecordingCallback callback = new RecordingCallback();
+    private final AtomicInteger cleanups = new AtomicInteger();
+    private final Runnable cleanup = new Runnable() {
+        public void run() {
+            cleanups.incrementAndGet();
+        }
+    };
+
+    public void testFreeLocksAreGranted() throws Exception {
+        LockRequest request = new LockRequest(lock("deploy"), "request", 0, -1, callback, cleanup).start();
+
+        assertTrue(callback.await());
+        assertNotNull(callback.held);
+        assertEquals("locks-and-latches lock requests", callback.thread);
+        assertSame(callback.held, request.getHeld());
+        assertTrue(table.getLock("deploy").getHolders().containsKey("request"));
+
+        assertTrue(request.release());
+        assertFalse(request.release());
+        assertTrue(table.getLock("deploy").getHolders().isEmpty());
+        assertEquals(1, cleanups.get());
+    }
+
+    public void testRequestIsGrantedOnceTheLockIsReleased() throws Exception {
+        List<LockHandle> held = LockTable.lockAll(lock("deploy"), "holder", 0, null);
+        LockRequest request = new LockRequest(lock("deploy"), "request", 0, -1, callback, cleanup).start();
+        assertFalse(callback.await(200));
+        assertNull(request.getHeld());
+
+        LockTable.unlockAll(held, "holder");
+        assertTrue(callback.await());
+        assertNotNull(callback.held);
+        request.release();
+    }
+
+    public void testRequestTimesOut() throws Exception {
+        LockTable.lockAll(lock("deploy"), "holder", 0, null);
+        LockRequest request = new LockRequest(lock("deploy"), "request", 0, 100, callback, cleanup).start();
+
+        assertTrue(callback.await());
+        assertTrue(callback.timedOut);
+        assertNull(request.getHeld());
+        assertFalse(request.cancel());
+        assertEquals(1, cleanups.get());
+        assertTrue(table.getLock("deploy").getWaiters().isEmpty());
+    }
+
+    public void testSingleAttemptDoesNotWait() throws Exception {
+        LockTable.lockAll(lock("deploy"), "holder", 0, null);
+        new LockRequest(lock("deploy"), "request", 0, 0, callback, cleanup).start();
+
+        assertTrue(callback.await());
+        assertTrue(callback.timedOut);
+    }
+
+    public void testCancelledRequestIsNeverGranted() throws Exception {
+        List<LockHandle> held = LockTable.lockAll(lock("deploy"), "holder", 0, null);
+        LockRequest request = new LockRequest(lock("deploy"), "request", 0, -1, callback, cleanup).start();
+        assertFalse(callback.await(100));
+
+        assertTrue(request.cancel());
+        assertFalse(request.cancel());
+        assertEquals(1, cleanups.get());
+        NamedReentrantLock lock = table.getLock("deploy");
+        assertTrue(lock.getWaiters().isEmpty());
+
+        LockTable.unlockAll(held, "holder");
+        assertFalse(callback.await(200));
+        assertTrue(lock.getHolders().isEmpty());
+    }
+
+    public void testRequestCannotStartTwice() {
+        LockRequest request = new LockRequest(lock("deploy"), "request", 0, -1, callback, cleanup).start();
+        try {
+            request.start();
+            fail();
+        } catch (IllegalStateException e) {
+            // expected
+        } finally {
+            request.cancel();
+        }
+    }
+
+    private List<LockHandle> lock(String name) {
+        return table.reference(Collections.singletonMap(name, false));
+    }
+
+    private static final class RecordingCallback implements LockRequest.Callback {
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile List<LockHandle> held;
+        private volatile boolean timedOut;
+        private volatile String thread;
+
+        public void granted(List<LockHandle> held) {
+            this.held = held;
+            thread = Thread.currentThread().getName();
+            done.countDown();
+        }
+
+        public void timedOut() {
+            timedOut = true;
+            thread = Thread.currentThread().getName();
+            done.countDown();
+        }
+
+        boolean await() throws InterruptedException {
+            return await(5000);
+        }
+
+        boolean await(long millis) throws InterruptedException {
+            return done.await(millis, TimeUnit.MILLISECONDS);
+        }
+    }
+}
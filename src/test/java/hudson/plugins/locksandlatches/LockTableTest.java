@@ -0,0 +1,307 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2007-2011, Stephen Connolly, Alan Harder, Romain Seguy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package hudson.plugins.locksandlatches;
+
+import hudson.plugins.locksandlatches.LockWrapper.LockConfig;
+import hudson.plugins.locksandlatches.LockWrapper.LockHandle;
+import hudson.plugins.locksandlatches.LockWrapper.LockWaiter;
+import hudson.plugins.locksandlatches.LockWrapper.NamedReentrantLock;
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class LockTableTest extends TestCase {
+    private final LockTable table = new LockTable();
+    private long now = 1000000L;
+    private final LockTable.Clock clock = new LockTable.Clock() {
+        public long now() {
+            return now;
+        }
+    };
+
+    public void testSameNameGivesSameLock() {
+        assertSame(table.getLock("a"), table.getLock("a"));
+    }
+
+    public void testTryLockAllTakesEveryLock() {
+        List<LockHandle> locks = locks("a", "b");
+        assertNull(tryLockAll(locks, "build"));
+        assertTrue(lock("a").getHolders().containsKey("build"));
+        assertTrue(lock("b").getHolders().containsKey("build"));
+
+        LockTable.unlockAll(locks, "build");
+        assertTrue(lock("a").getHolders().isEmpty());
+        assertTrue(lock("b").getHolders().isEmpty());
+    }
+
+    public void testTryLockAllTakesNoneIfOneIsBusy() {
+        assertNull(tryLockAll(locks("b"), "other"));
+
+        List<LockHandle> locks = locks("a", "b", "c");
+        assertSame(locks.get(1), tryLockAll(locks, "build"));
+        assertTrue(lock("a").getHolders().isEmpty());
+        assertTrue(lock("c").getHolders().isEmpty());
+    }
+
+    public void testOwnerCanTakeItsLockAgain() {
+        assertNull(tryLockAll(locks("a"), "build"));
+        assertNull(tryLockAll(locks("a"), "build"));
+        assertNotNull(tryLockAll(locks("a"), "other"));
+
+        assertEquals(1, table.releaseAll("build"));
+        assertNull(tryLockAll(locks("a"), "other"));
+    }
+
+    public void testCapacityAdmitsThatManyHolders() {
+        lock("a").setCapacity(2);
+        assertNull(tryLockAll(locks("a"), "one"));
+        assertNull(tryLockAll(locks("a"), "two"));
+        assertNotNull(tryLockAll(locks("a"), "three"));
+        assertEquals(2, lock("a").getHoldCount());
+    }
+
+    public void testSharedHoldersDoNotExcludeEachOther() {
+        assertNull(tryLockAll(shared("a"), "one"));
+        assertNull(tryLockAll(shared("a"), "two"));
+        assertNotNull(tryLockAll(locks("a"), "three"));
+        assertEquals(2, lock("a").getSharedCount());
+    }
+
+    public void testSharedHolderWaitsForExclusiveOne() {
+        assertNull(tryLockAll(locks("a"), "one"));
+        assertNotNull(tryLockAll(shared("a"), "two"));
+    }
+
+    public void testPoolTakesFreeMembers() {
+        assertNull(tryLockAll(locks("db1"), "other"));
+        List<LockHandle> pool = new ArrayList<LockHandle>();
+        pool.add(table.referencePool("db", Arrays.asList("db1", "db2", "db3"), 2, false));
+        List<LockHandle> held = new ArrayList<LockHandle>();
+
+        assertNull(LockTable.tryLockAll(pool, null, "build", held));
+        assertEquals(2, held.size());
+        assertNotSame(lock("db1"), held.get(0).getLock());
+        assertNotSame(lock("db1"), held.get(1).getLock());
+        assertNotNull(tryLockAll(pool, "third"));
+    }
+
+    public void testLockAllTimesOut() throws Exception {
+        assertNull(tryLockAll(locks("a"), "holder"));
+        long start = System.currentTimeMillis();
+
+        assertNull(LockTable.lockAll(locks("a"), "build", 100, null));
+        assertTrue(System.currentTimeMillis() - start >= 100);
+        assertEquals(0, lock("a").getWaiterCount());
+    }
+
+    public void testLockAllIsWokenUpByTheRelease() throws Exception {
+        List<LockHandle> held = locks("a", "b");
+        assertNull(tryLockAll(held, "holder"));
+        final AtomicReference<List<LockHandle>> got = new AtomicReference<List<LockHandle>>();
+        Thread waiter = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    got.set(LockTable.lockAll(locks("b"), "build", -1, null));
+                } catch (InterruptedException e) {
+                    // the test fails below
+                }
+            }
+        };
+        waiter.start();
+        waiter.join(200);
+        assertTrue(waiter.isAlive());
+
+        LockTable.unlockAll(held, "holder");
+        waiter.join(5000);
+        assertNotNull(got.get());
+        assertTrue(lock("b").getHolders().containsKey("build"));
+    }
+
+    public void testUnlockWakesUpWaiters() throws Exception {
+        List<LockHandle> locks = locks("a");
+        LockWaiter waiter = new LockWaiter();
+        lock("a").addWaiter(waiter);
+        assertNull(tryLockAll(locks, "build"));
+
+        LockTable.unlockAll(locks, "build");
+        // the signal is remembered, so this returns at once
+        waiter.await();
+    }
+
+    public void testLockIsKeptForHigherPriorityWaiter() {
+        assertNull(tryLockAll(locks("a"), "holder"));
+        LockWaiter urgent = new LockWaiter("urgent", 5);
+        assertNotNull(LockTable.tryLockAll(locks("a"), urgent, "urgent", new ArrayList<LockHandle>()));
+        LockTable.unlockAll(locks("a"), "holder");
+
+        LockWaiter other = new LockWaiter("other", 1);
+        assertNotNull(LockTable.tryLockAll(locks("a"), other, "other", new ArrayList<LockHandle>()));
+        assertNull(LockTable.tryLockAll(locks("a"), urgent, "urgent", new ArrayList<LockHandle>()));
+    }
+
+    public void testLongWaitOvertakesHigherPriority() {
+        long now = System.currentTimeMillis();
+        LockWaiter aged = new LockWaiter("aged", 0, now - 3 * LockWaiter.AGING_INTERVAL);
+        assertEquals(3, aged.getEffectivePriority(now));
+
+        assertNull(tryLockAll(locks("a"), "holder"));
+        assertNotNull(LockTable.tryLockAll(locks("a"), aged, "aged", new ArrayList<LockHandle>()));
+        LockTable.unlockAll(locks("a"), "holder");
+
+        LockWaiter fresh = new LockWaiter("fresh", 2);
+        assertNotNull(LockTable.tryLockAll(locks("a"), fresh, "fresh", new ArrayList<LockHandle>()));
+        assertNull(LockTable.tryLockAll(locks("a"), aged, "aged", new ArrayList<LockHandle>()));
+    }
+
+    public void testSharedRequestGivesWayToExclusiveOneOfSamePriority() {
+        assertNull(tryLockAll(shared("a"), "reader"));
+        LockWaiter writer = new LockWaiter("writer", 1);
+        assertNotNull(LockTable.tryLockAll(locks("a"), writer, "writer", new ArrayList<LockHandle>()));
+
+        assertNotNull(LockTable.tryLockAll(shared("a"), new LockWaiter("same", 1), "same", new ArrayList<LockHandle>()));
+        assertNull(LockTable.tryLockAll(shared("a"), new LockWaiter("higher", 2), "higher", new ArrayList<LockHandle>()));
+    }
+
+    public void testUnlimitedLockNeedsNoToken() {
+        assertEquals(0, lock("a").getTokenDelay());
+        assertEquals(Long.MAX_VALUE, LockTable.getTokenDelay(locks("a").get(0)));
+    }
+
+    public void testTokenComesBackAtTheRate() {
+        rateLimited("a", 2, 1);
+        assertNull(tryLockAll(locks("a"), "one"));
+        LockTable.unlockAll(locks("a"), "one");
+        assertNotNull(tryLockAll(locks("a"), "two"));
+        assertEquals(30000, lock("a").getTokenDelay());
+
+        now += 29999;
+        assertNotNull(tryLockAll(locks("a"), "two"));
+        assertEquals(1, lock("a").getTokenDelay());
+        now += 1;
+        assertEquals(0, lock("a").getTokenDelay());
+        assertNull(tryLockAll(locks("a"), "two"));
+    }
+
+    public void testBurstLetsThatManyBuildsThrough() {
+        rateLimited("a", 6, 3);
+        for (String owner : Arrays.asList("one", "two", "three")) {
+            assertNull(tryLockAll(locks("a"), owner));
+            LockTable.unlockAll(locks("a"), owner);
+        }
+        assertNotNull(tryLockAll(locks("a"), "four"));
+        assertEquals(10000, LockTable.getTokenDelay(locks("a").get(0)));
+
+        // the bucket never holds more than the burst
+        now += 60 * 60000L;
+        for (String owner : Arrays.asList("four", "five", "six")) {
+            assertNull(tryLockAll(locks("a"), owner));
+            LockTable.unlockAll(locks("a"), owner);
+        }
+        assertNotNull(tryLockAll(locks("a"), "seven"));
+    }
+
+    public void testRollbackGivesTheTokenBack() {
+        rateLimited("a", 1, 1);
+        assertNull(tryLockAll(locks("b"), "other"));
+        List<LockHandle> locks = locks("a", "b");
+        assertSame(locks.get(1), tryLockAll(locks, "build"));
+        assertEquals(0, lock("a").getTokenDelay());
+
+        List<LockHandle> held = locks("a");
+        assertNull(tryLockAll(held, "build"));
+        assertEquals(60000, lock("a").getTokenDelay());
+        LockTable.rollbackAll(held, "build");
+        assertEquals(0, lock("a").getTokenDelay());
+        assertNull(tryLockAll(locks("a"), "third"));
+    }
+
+    public void testLockAllIsWokenUpByTheToken() throws Exception {
+        // the real clock, 100 milliseconds per token
+        lock("a").setRate(600, 1);
+        assertNull(tryLockAll(locks("a"), "one"));
+        LockTable.unlockAll(locks("a"), "one");
+        final AtomicReference<List<LockHandle>> got = new AtomicReference<List<LockHandle>>();
+        Thread waiter = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    got.set(LockTable.lockAll(locks("a"), "two", -1, null));
+                } catch (InterruptedException e) {
+                    // the test fails below
+                }
+            }
+        };
+        waiter.start();
+        // nothing signals the waiter, it has to wake up when the token comes in
+        waiter.join(5000);
+        assertNotNull(got.get());
+    }
+
+    public void testUnusedLockIsDroppedUnlessConfigured() {
+        List<LockHandle> handles = table.reference(Collections.singletonMap("a", false));
+        assertSame(handles.get(0).getLock(), table.peekLock("a"));
+        table.dereference(handles);
+        assertNull(table.peekLock("a"));
+
+        table.setConfiguredLocks(Collections.singletonMap("b", new LockConfig("b", 2, null)));
+        handles = table.reference(Collections.singletonMap("b", false));
+        assertEquals(2, handles.get(0).getLock().getCapacity());
+        table.dereference(handles);
+        assertNotNull(table.peekLock("b"));
+    }
+
+    private NamedReentrantLock lock(String name) {
+        return table.getLock(name);
+    }
+
+    private void rateLimited(String name, int rate, int burst) {
+        lock(name).setClock(clock);
+        lock(name).setRate(rate, burst);
+    }
+
+    private List<LockHandle> locks(String... names) {
+        List<LockHandle> locks = new ArrayList<LockHandle>();
+        for (String name : names) {
+            locks.add(new LockHandle(table.getLock(name), false));
+        }
+        return locks;
+    }
+
+    private List<LockHandle> shared(String name) {
+        List<LockHandle> locks = new ArrayList<LockHandle>();
+        locks.add(new LockHandle(table.getLock(name), true));
+        return locks;
+    }
+
+    private static LockHandle tryLockAll(List<LockHandle> locks, Object owner) {
+        return LockTable.tryLockAll(locks, null, owner, new ArrayList<LockHandle>());
+    }
+}
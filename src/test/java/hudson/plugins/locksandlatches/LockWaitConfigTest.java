@@ -0,0 +1,60 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2007-2011, Stephen Connolly, Alan Harder, Romain Seguy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package hudson.plugins.locksandlatches;
+
+import hudson.plugins.locksandlatches.LockWrapper.LockWaitConfig;
+import junit.framework.TestCase;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+public class LockWaitConfigTest extends TestCase {
+    private final Map<String, String> variables = new HashMap<String, String>();
+
+    public void testVariablesAreExpanded() {
+        variables.put("ENV", "prod");
+        variables.put("BRANCH", "main");
+        LockWaitConfig lock = new LockWaitConfig("deploy-${ENV}-$BRANCH", true, 2);
+        assertTrue(lock.isParameterised());
+
+        LockWaitConfig resolved = lock.resolve(variables);
+        assertEquals("deploy-prod-main", resolved.getName());
+        assertTrue(resolved.isShared());
+        assertEquals(2, resolved.getCount());
+        assertFalse(resolved.isParameterised());
+    }
+
+    public void testUnsetVariableIsLeftAsItIs() {
+        variables.put("ENV", "prod");
+        assertEquals("deploy-prod-${REGION}", new LockWaitConfig("deploy-${ENV}-${REGION}", false, 1).resolve(variables).getName());
+    }
+
+    public void testPlainNameIsKept() {
+        LockWaitConfig lock = new LockWaitConfig("deploy", false, 1);
+        assertFalse(lock.isParameterised());
+        assertSame(lock, lock.resolve(Collections.singletonMap("ENV", "prod")));
+    }
+}
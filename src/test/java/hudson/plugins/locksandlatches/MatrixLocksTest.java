@@ -0,0 +1,79 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2007-2011, Stephen Connolly, Alan Harder, Romain Seguy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package hudson.plugins.locksandlatches;
+
+import hudson.plugins.locksandlatches.LockWrapper.LockConfig;
+import hudson.plugins.locksandlatches.LockWrapper.LockHandle;
+import hudson.plugins.locksandlatches.LockWrapper.LockWaitConfig;
+import junit.framework.TestCase;
+
+import java.util.Collections;
+import java.util.List;
+
+public class MatrixLocksTest extends TestCase {
+    private final LockTable table = new LockTable();
+    private final MatrixLocks matrixLocks = new MatrixLocks(table);
+    private final LockBackend backend = new MemoryLockBackend();
+    private final LockPlan plan = new LockPlan(Collections.singletonList(new LockWaitConfig("deploy", false, 1)),
+            Collections.<String, List<String>>emptyMap(), Collections.<String, LockConfig>emptyMap(), 0);
+
+    public void testRunsShareTheLocksOfTheirParent() throws Exception {
+        List<LockHandle> held = matrixLocks.inherit(plan, backend, "parent", 0, 0, null);
+        assertNotNull(held);
+        assertSame(held, matrixLocks.inherit(plan, backend, "parent", 0, 0, null));
+        assertEquals(Collections.singleton("parent"), table.peekLock("deploy").getHolders().keySet());
+        assertEquals(1, table.peekLock("deploy").getHoldCount());
+    }
+
+    public void testOtherParentWaitsForTheRelease() throws Exception {
+        assertNotNull(matrixLocks.inherit(plan, backend, "parent", 0, 0, null));
+        assertNull(matrixLocks.inherit(plan, backend, "other", 0, 0, null));
+
+        matrixLocks.release("parent");
+        assertNull(table.peekLock("deploy"));
+        assertNotNull(matrixLocks.inherit(plan, backend, "other", 0, 0, null));
+    }
+
+    public void testReleaseOfUnknownParentIsIgnored() {
+        matrixLocks.release("parent");
+        assertEquals(0, table.size());
+    }
+
+    public void testRunsOfAParentGoOneAtATime() throws Exception {
+        List<LockHandle> first = matrixLocks.lockSerial("job #1", "run1", 0, 0, null);
+        assertNotNull(first);
+        assertNull(matrixLocks.lockSerial("job #1", "run2", 0, 0, null));
+        List<LockHandle> other = matrixLocks.lockSerial("job #2", "run1", 0, 0, null);
+        assertNotNull(other);
+
+        matrixLocks.unlockSerial(first, "run1");
+        List<LockHandle> second = matrixLocks.lockSerial("job #1", "run2", 0, 0, null);
+        assertNotNull(second);
+
+        matrixLocks.unlockSerial(second, "run2");
+        matrixLocks.unlockSerial(other, "run1");
+        assertEquals(0, table.size());
+    }
+}
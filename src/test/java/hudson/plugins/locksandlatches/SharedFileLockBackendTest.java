@@ -0,0 +1,131 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2007-2011, Stephen Connolly, Alan Harder, Romain Seguy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package hudson.plugins.locksandlatches;
+
+import hudson.plugins.locksandlatches.LockWrapper.LockHandle;
+import hudson.plugins.locksandlatches.LockWrapper.NamedReentrantLock;
+import junit.framework.TestCase;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Runs a second JVM holding leases, as another Hudson instance sharing the
+ * lease directory would.
+ */
+public class SharedFileLockBackendTest extends TestCase {
+    private File directory;
+    private Process other;
+
+    @Override
+    protected void setUp() throws Exception {
+        directory = File.createTempFile("leases", "");
+        directory.delete();
+        directory.mkdirs();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (other != null) {
+            other.destroy();
+            other.waitFor();
+        }
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    public void testLockLeasedElsewhereIsNotGranted() throws Exception {
+        holdElsewhere("db1");
+        SharedFileLockBackend backend = new SharedFileLockBackend(directory);
+        List<LockHandle> locks = Collections.singletonList(new LockHandle(new NamedReentrantLock("db1"), false));
+
+        assertNull(backend.lockAll(locks, "build", 0, 200, null));
+    }
+
+    public void testPoolFallsThroughToMemberNotLeasedElsewhere() throws Exception {
+        holdElsewhere("db1");
+        SharedFileLockBackend backend = new SharedFileLockBackend(directory);
+        NamedReentrantLock db1 = new NamedReentrantLock("db1");
+        NamedReentrantLock db2 = new NamedReentrantLock("db2");
+        List<LockHandle> locks = Collections.singletonList(new LockHandle("db", Arrays.asList(db1, db2), 1, false));
+
+        List<LockHandle> held = backend.lockAll(locks, "build", 0, 5000, null);
+        assertNotNull(held);
+        assertEquals(1, held.size());
+        assertSame(db2, held.get(0).getLock());
+        backend.unlockAll(held, "build");
+    }
+
+    public void testLeaseGivenBackIsGranted() throws Exception {
+        SharedFileLockBackend backend = new SharedFileLockBackend(directory);
+        List<LockHandle> locks = Collections.singletonList(new LockHandle(new NamedReentrantLock("db1"), false));
+        List<LockHandle> held = backend.lockAll(locks, "build", 0, 0, null);
+        assertNotNull(held);
+        backend.unlockAll(held, "build");
+
+        assertNotNull(backend.lockAll(locks, "other build", 0, 0, null));
+    }
+
+    /**
+     * Starts {@link #main(String[])} in another JVM, and waits until it holds the lease.
+     */
+    private void holdElsewhere(String name) throws IOException {
+        String java = new File(new File(System.getProperty("java.home"), "bin"), "java").getPath();
+        other = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                SharedFileLockBackendTest.class.getName(), directory.getPath(), name).redirectErrorStream(true).start();
+        BufferedReader out = new BufferedReader(new InputStreamReader(other.getInputStream()));
+        String line = out.readLine();
+        assertEquals("held", line);
+    }
+
+    /**
+     * Holds the lease of the lock named by the second argument until the
+     * standard input is closed.
+     */
+    public static void main(String[] args) throws Exception {
+        SharedFileLockBackend backend = new SharedFileLockBackend(new File(args[0]));
+        List<LockHandle> locks = Collections.singletonList(new LockHandle(new NamedReentrantLock(args[1]), false));
+        if (backend.lockAll(locks, "other", 0, 0, null) == null) {
+            System.out.println("busy");
+            return;
+        }
+        System.out.println("held");
+        System.out.flush();
+        while (System.in.read() != -1) {
+            // hold until killed
+        }
+    }
+}
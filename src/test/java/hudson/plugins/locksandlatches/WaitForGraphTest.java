@@ -0,0 +1,129 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2007-2011, Stephen Connolly, Alan Harder, Romain Seguy
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package hudson.plugins.locksandlatches;
+
+import hudson.plugins.locksandlatches.LockWrapper.LockHandle;
+import hudson.plugins.locksandlatches.LockWrapper.LockWaiter;
+import hudson.plugins.locksandlatches.LockWrapper.NamedReentrantLock;
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class WaitForGraphTest extends TestCase {
+    private final WaitForGraph graph = new WaitForGraph();
+
+    public void testNoCycleInChain() {
+        graph.addEdge("a", "b", "x");
+        graph.addEdge("b", "c", "y");
+        assertTrue(graph.findCycles().isEmpty());
+    }
+
+    public void testCycleBetweenTwoOwners() {
+        graph.addEdge("a", "b", "x");
+        graph.addEdge("b", "a", "y");
+        graph.addEdge("c", "a", "z");
+        assertEquals(Collections.singletonList(Arrays.<Object>asList("a", "b")), graph.findCycles());
+    }
+
+    public void testWaitingForItselfIsACycle() {
+        graph.addEdge("a", "a", "x");
+        assertEquals(Collections.singletonList(Collections.<Object>singletonList("a")), graph.findCycles());
+    }
+
+    public void testSeparateCycles() {
+        graph.addEdge("a", "b", "x");
+        graph.addEdge("b", "c", "x");
+        graph.addEdge("c", "a", "x");
+        graph.addEdge("d", "e", "y");
+        graph.addEdge("e", "d", "y");
+        graph.addEdge("c", "d", "z");
+        List<List<Object>> cycles = graph.findCycles();
+        assertEquals(2, cycles.size());
+        assertTrue(cycles.contains(Arrays.<Object>asList("d", "e")));
+        assertEquals(5, cycles.get(0).size() + cycles.get(1).size());
+    }
+
+    public void testDownstreamWaitIsOnlyAPossibleCycle() {
+        graph.addEdge("downstream", "upstream", "deploy");
+        graph.addPossibleEdge("upstream", "downstream", "downstream build");
+        assertTrue(graph.findCycles().isEmpty());
+        assertEquals(Collections.singletonList(Arrays.<Object>asList("downstream", "upstream")), graph.findPossibleCycles());
+        assertEquals("downstream waits for upstream (deploy), upstream may wait for downstream (downstream build)",
+                LockMonitor.describe(graph, graph.findPossibleCycles().get(0)));
+    }
+
+    public void testCertainCycleIsNotAlsoPossible() {
+        graph.addEdge("a", "b", "x");
+        graph.addEdge("b", "a", "y");
+        graph.addPossibleEdge("a", "b", "downstream build");
+        assertEquals(1, graph.findCycles().size());
+        assertTrue(graph.findPossibleCycles().isEmpty());
+    }
+
+    public void testReasonsAddUp() {
+        graph.addEdge("a", "b", "x");
+        graph.addEdge("a", "b", "y");
+        assertEquals("x, y", graph.getEdges().get("a").get("b"));
+    }
+
+    public void testWaiterWaitsForHoldersOfItsBlocker() throws Exception {
+        LockTable table = new LockTable();
+        List<LockHandle> held = LockTable.lockAll(table.reference(Collections.singletonMap("deploy", false)), "holder", 0, null);
+        assertNotNull(held);
+        LockWaiter waiter = new LockWaiter("queued", 0, 1000L);
+        waiter.setBlocker(held.get(0));
+
+        graph.addWaiter(waiter);
+        assertEquals(Collections.singletonMap("holder", "deploy"), graph.getEdges().get("queued"));
+        assertEquals(Collections.singletonList(waiter), graph.findStarved(60000L, 100000L));
+        assertTrue(graph.findStarved(60000L, 2000L).isEmpty());
+    }
+
+    public void testOfFollowsTheBlockerOfEachWaiter() throws Exception {
+        LockTable table = new LockTable();
+        List<LockHandle> first = table.reference(Collections.singletonMap("a", false));
+        List<LockHandle> second = table.reference(Collections.singletonMap("b", false));
+        assertNotNull(LockTable.lockAll(first, "one", 0, null));
+        assertNotNull(LockTable.lockAll(second, "two", 0, null));
+        NamedReentrantLock a = first.get(0).getLock();
+        NamedReentrantLock b = second.get(0).getLock();
+        LockWaiter one = new LockWaiter("one", 0);
+        one.setBlocker(new LockHandle(b, false));
+        LockWaiter two = new LockWaiter("two", 0);
+        two.setBlocker(new LockHandle(a, false));
+        for (NamedReentrantLock lock : Arrays.asList(a, b)) {
+            lock.addWaiter(one);
+            lock.addWaiter(two);
+        }
+
+        WaitForGraph graph = WaitForGraph.of(table);
+        assertEquals(Collections.singletonMap("two", "b"), graph.getEdges().get("one"));
+        assertEquals(Collections.singletonMap("one", "a"), graph.getEdges().get("two"));
+        assertEquals(Collections.singletonList(Arrays.<Object>asList("one", "two")), graph.findCycles());
+    }
+}